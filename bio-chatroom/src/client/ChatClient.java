@@ -16,10 +16,16 @@ public class ChatClient {
     private final int DEFAULT_SERVER_PORT = 8888;
     private final String QUIT = "quit";
 
+    // 昵称，连接后作为第一行发给服务器
+    private String nickname;
     private Socket socket;
     private BufferedWriter writer;
     private BufferedReader reader;
 
+    public ChatClient(String nickname) {
+        this.nickname = nickname;
+    }
+
     // 发送消息给服务器
     public void send(String msg) throws IOException {
         if (!socket.isOutputShutdown()) {
@@ -59,6 +65,9 @@ public class ChatClient {
             socket = new Socket(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
             reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            // 登录
+            send(nickname);
+            System.out.println("以" + nickname + "登录，输入 @昵称 消息 可以私聊");
 
             // 处理来自控制台的输入
             new Thread(new UserInputHandler(this)).start();
@@ -77,7 +86,9 @@ public class ChatClient {
     }
 
     public static void main(String[] args) {
-        ChatClient chatClient = new ChatClient();
+        // 不指定昵称时使用系统用户名
+        String nickname = args.length > 0 ? args[0] : System.getProperty("user.name");
+        ChatClient chatClient = new ChatClient(nickname);
         chatClient.start();
     }
 
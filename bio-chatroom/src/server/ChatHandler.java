@@ -3,6 +3,7 @@ package server;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
 import java.net.Socket;
 
 /**
@@ -13,6 +14,9 @@ import java.net.Socket;
  */
 public class ChatHandler implements Runnable {
 
+    // 一行最多的字符数，和NIO服务器单条消息的上限相当。超过时断开客户端，一直不换行的客户端不能占满服务器的内存
+    private static final int MAX_LINE = 64 * 1024;
+
     private ChatServer chatServer;
     private Socket socket;
 
@@ -24,16 +28,29 @@ public class ChatHandler implements Runnable {
 
     @Override
     public void run() {
+        String nickname = null;
+        Writer writer = null;
         try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // 客户端连接后发送的第一行是昵称
+            nickname = readLine(reader);
             // 连接起客户端和服务器端
-            chatServer.addClient(socket);
+            writer = chatServer.addClient(nickname, socket);
+            if (writer == null) {
+                socket.close();
+                return;
+            }
             // 读取客户端输入信息
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             String msg = null;
-            while ((msg = reader.readLine()) != null) {
-                System.out.println("服务器接受客户端" + socket.getPort() + "消息：" + msg);
-                // 转发给其他的客户端
-                chatServer.forwordMessage(socket, msg + "\n");
+            while ((msg = readLine(reader)) != null) {
+                chatServer.getEventLog().record(EventLog.RECEIVED, 0, nickname, msg);
+                if (chatServer.isPrivate(msg)) {
+                    // 私聊只发给一个客户端
+                    chatServer.sendPrivate(nickname, msg);
+                } else {
+                    // 转发给其他的客户端
+                    chatServer.forwordMessage(nickname, msg + "\n");
+                }
                 if (chatServer.readerToQuit(msg)) {
                     break;
                 }
@@ -42,7 +59,9 @@ public class ChatHandler implements Runnable {
             e.printStackTrace();
         } finally {
             try {
-                chatServer.removeClient(socket);
+                chatServer.removeClient(nickname, writer);
+                // 登记之前就断开（比如昵称超长）的连接没有writer，只能在这里关闭
+                socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -50,4 +69,29 @@ public class ChatHandler implements Runnable {
 
 
     }
+
+    /**
+     * 读取一行，和BufferedReader.readLine一样去掉行尾的\n或\r\n
+     * @param reader
+     * @return 连接关闭时返回null
+     * @throws IOException 一行超过MAX_LINE个字符
+     */
+    private String readLine(BufferedReader reader) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("一行超过" + MAX_LINE + "个字符，断开客户端");
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
 }
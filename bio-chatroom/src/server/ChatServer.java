@@ -3,8 +3,8 @@ package server;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -18,74 +18,128 @@ public class ChatServer {
 
     private final int DEFAULT_PORT = 8888;
     private final String QUIT = "quit";
+    // 私聊消息的前缀，格式为 @昵称 消息
+    private final String PRIVATE = "@";
+    private final int MAX_NICKNAME = 32;
     private ServerSocket serverSocket;
-    // key为端口号，value为服务器对应的输出流
-    private Map<Integer, Writer> connectedClients;
+    // key为昵称，value为服务器对应的输出流。私聊按昵称直接找到接收者，不用遍历所有客户端
+    private Map<String, Writer> connectedClients;
     private ExecutorService executorService;
+    // 转发日志交给后台线程批量输出，不在转发路径上同步写控制台
+    private EventLog eventLog;
 
     public ChatServer() {
-        this.connectedClients = new HashMap<>();
+        this.eventLog = new EventLog();
+        this.connectedClients = new ConcurrentHashMap<>();
         // 创建固定为10个线程的线程池
         this.executorService = Executors.newFixedThreadPool(10);
     }
 
     /**
      * 增加连接的客户端信息
+     * @param nickname
      * @param socket
+     * @return 客户端对应的输出流，昵称不合法或者已被占用时返回null
      */
-    public synchronized void addClient(Socket socket) throws IOException {
-        if (socket != null) {
-            int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
-            connectedClients.put(port, writer);
+    public Writer addClient(String nickname, Socket socket) throws IOException {
+        if (socket == null) {
+            return null;
         }
+        BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream())
+        );
+        if (!isValidNickname(nickname)) {
+            write(writer, "昵称不合法：不能为空、不能包含空格、最多" + MAX_NICKNAME + "个字符\n");
+            return null;
+        }
+        if (connectedClients.putIfAbsent(nickname, writer) != null) {
+            write(writer, "昵称" + nickname + "已被占用\n");
+            return null;
+        }
+        return writer;
     }
 
     /**
      * 移除客户端
-     * @param socket
+     * @param nickname
+     * @param writer 只移除自己登记的输出流，不会误删同名的其他连接
      * @throws IOException
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
-        if (socket != null) {
-            int port = socket.getPort();
-            if (connectedClients.containsKey(port)) {
-                Writer writer = connectedClients.get(port);
-                writer.close();
-                connectedClients.remove(port);
-            }
+    public void removeClient(String nickname, Writer writer) throws IOException {
+        if (nickname != null && writer != null) {
+            connectedClients.remove(nickname, writer);
+            writer.close();
         }
     }
 
     /**
      * 转发消息给其他客户端
-     * @param socket
+     * @param nickname 发送者
      * @param msg
      * @throws IOException
      */
-    public synchronized void forwordMessage(Socket socket, String msg) throws IOException {
-        if (socket != null) {
-            for (Integer port : connectedClients.keySet()) {
-                if (!port.equals(socket.getPort())) {
-                    // 转发消息给其他客户端
-                    Writer writer = connectedClients.get(port);
-                    writer.write(msg);
-                    writer.flush(); // 刷新writer缓冲区，确保消息被发出
-                    System.out.println("消息" + msg + "被转发到端口" + port);
+    public void forwordMessage(String nickname, String msg) throws IOException {
+        // 所有接收者看到的内容相同，只拼接一次
+        String line = nickname + ":" + msg;
+        for (Map.Entry<String, Writer> entry : connectedClients.entrySet()) {
+            if (!entry.getKey().equals(nickname)) {
+                // 转发消息给其他客户端
+                try {
+                    write(entry.getValue(), line);
+                } catch (IOException e) {
+                    // 接收者正在断开，由它自己的ChatHandler移除，不影响发送者
+                    continue;
                 }
+                eventLog.record(EventLog.FORWARDED, 0, msg, entry.getKey());
             }
         }
     }
 
+    /**
+     * 私聊：按昵称直接找到接收者，只写这一个客户端
+     * @param nickname 发送者
+     * @param msg 以@开头的原始消息，不带换行符，否则没有正文时换行符会被当成昵称的一部分
+     * @throws IOException
+     */
+    public void sendPrivate(String nickname, String msg) throws IOException {
+        int split = msg.indexOf(' ');
+        String target = split < 0 ? msg.substring(PRIVATE.length()) : msg.substring(PRIVATE.length(), split);
+        String text = split < 0 ? "" : msg.substring(split + 1);
+        Writer writer = connectedClients.get(target);
+        if (writer == null) {
+            Writer self = connectedClients.get(nickname);
+            if (self != null) {
+                write(self, "用户" + target + "不在线\n");
+            }
+            return;
+        }
+        write(writer, nickname + "(私聊):" + text + "\n");
+    }
+
+    // 每个输出流单独加锁，不同客户端的写入互不阻塞
+    private void write(Writer writer, String msg) throws IOException {
+        synchronized (writer) {
+            writer.write(msg);
+            writer.flush(); // 刷新writer缓冲区，确保消息被发出
+        }
+    }
+
+    private boolean isValidNickname(String nickname) {
+        return nickname != null && !nickname.isEmpty() && nickname.length() <= MAX_NICKNAME
+                && nickname.indexOf(' ') < 0 && !nickname.startsWith(PRIVATE);
+    }
+
+    public boolean isPrivate(String msg) {
+        return msg.startsWith(PRIVATE);
+    }
+
     public void start() {
         try {
             // 按照默认端口启动服务器
             serverSocket = new ServerSocket(DEFAULT_PORT);
             while (true) {
                 Socket socket = serverSocket.accept();
-                System.out.println("连接上客户端，端口：" + socket.getPort());
+                eventLog.record(EventLog.CONNECTED, socket.getPort());
                 // 调用charHandler处理客户端事件
                 // 用线程池优化，实现伪异步IO
                 executorService.execute(new ChatHandler(this, socket));
@@ -109,6 +163,10 @@ public class ChatServer {
         }
     }
 
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
     public boolean readerToQuit(String msg) {
         return QUIT.equals(msg);
     }
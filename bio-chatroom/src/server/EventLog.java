@@ -0,0 +1,160 @@
+package server;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @FileName: EventLog.java
+ * @Description: 异步日志：I/O线程只把事件的几个字段写进预先分配好的环形缓冲区，不分配对象也不加锁，
+ *               后台线程批量格式化后一次写到控制台。缓冲区满时丢弃事件并计数，绝不阻塞I/O线程
+ * @Author: camille
+ * @Date: 2020/12/05 20:25
+ */
+public class EventLog {
+
+    // 事件类型
+    public static final int CONNECTED = 1; // arg为客户端端口
+    public static final int RECEIVED = 2;  // ref1为发送者昵称，ref2为消息
+    public static final int FORWARDED = 3; // ref1为消息，ref2为接收者昵称
+
+    // 容量必须是2的幂，用位运算代替取模
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    // 后台线程每次最多处理的事件数
+    private static final int BATCH = 512;
+    // 缓冲区为空时后台线程休眠，等第一个写入的线程唤醒它，最多睡这么久
+    private static final long IDLE_NANOS = 1000000000L;
+
+    private final long[] times = new long[CAPACITY];
+    private final int[] types = new int[CAPACITY];
+    private final long[] args = new long[CAPACITY];
+    private final Object[] refs1 = new Object[CAPACITY];
+    private final Object[] refs2 = new Object[CAPACITY];
+    // 每个槽位写完后发布它的序号，后台线程看到序号对上了才读取
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    // 下一个要写入的序号，多个线程通过CAS抢占
+    private final AtomicLong tail = new AtomicLong();
+    // 下一个要读取的序号，只有持有锁的消费者修改
+    private volatile long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;
+    // 后台线程正在休眠，写入的线程发布事件后需要唤醒它
+    private volatile boolean sleeping;
+    private final Thread writer;
+
+    private final StringBuilder line = new StringBuilder(BATCH * 64);
+    private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+    private final Date date = new Date();
+
+    public EventLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+        writer = new Thread(() -> {
+            while (true) {
+                if (drain() > 0) {
+                    continue;
+                }
+                // 先声明要休眠，再检查一次，期间发布的事件要么在这里被读到，要么它的写入线程会唤醒我们。
+                // 空闲的服务器上后台线程基本不醒来
+                sleeping = true;
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+                sleeping = false;
+            }
+        }, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 记录一个事件，只写几个字段，不分配对象。缓冲区满时直接丢弃
+     * @param type
+     * @param arg
+     * @param ref1 已经存在的对象（比如消息字符串），只保存引用
+     * @param ref2
+     */
+    public void record(int type, long arg, Object ref1, Object ref2) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        int slot = (int) (seq & MASK);
+        times[slot] = System.currentTimeMillis();
+        types[slot] = type;
+        args[slot] = arg;
+        refs1[slot] = ref1;
+        refs2[slot] = ref2;
+        // 用volatile写发布，保证和下面读sleeping的顺序，不会错过唤醒
+        published.set(slot, seq);
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public void record(int type, long arg) {
+        record(type, arg, null, null);
+    }
+
+    // 停机前把缓冲区里剩下的事件都写出去
+    public void flush() {
+        while (drain() > 0);
+    }
+
+    // 取出一批事件，格式化后一次写出，返回处理的事件数
+    private synchronized int drain() {
+        line.setLength(0);
+        int n = 0;
+        long seq = head;
+        while (n < BATCH) {
+            int slot = (int) (seq & MASK);
+            if (published.get(slot) != seq) {
+                break; // 还没写完或者已经读完
+            }
+            date.setTime(times[slot]);
+            line.append(format.format(date)).append(' ');
+            format(types[slot], args[slot], refs1[slot], refs2[slot]);
+            line.append(System.lineSeparator());
+            refs1[slot] = null;
+            refs2[slot] = null;
+            seq++;
+            n++;
+        }
+        head = seq;
+        long lost = dropped.get();
+        if (lost != reportedDropped) {
+            line.append("日志缓冲区已满，累计丢弃").append(lost).append("条日志").append(System.lineSeparator());
+            reportedDropped = lost;
+        }
+        if (line.length() > 0) {
+            System.out.print(line);
+            System.out.flush();
+        }
+        return n;
+    }
+
+    private void format(int type, long arg, Object ref1, Object ref2) {
+        switch (type) {
+            case CONNECTED:
+                line.append("连接上客户端，端口：").append(arg);
+                break;
+            case RECEIVED:
+                line.append("服务器接受客户端").append(ref1).append("消息：").append(ref2);
+                break;
+            case FORWARDED:
+                line.append("消息").append(ref1).append("被转发到").append(ref2);
+                break;
+            default:
+                line.append("未知事件").append(type);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @FileName: FrameSoakClient.java
+ * @Description: NIO聊天室的协议：帧头为4字节负载长度 + 1字节类型 + 1字节标志位 + 8字节序号，
+ *               和nio-chatroom里的protocol.Frame保持一致。压测客户端不协商压缩
+ * @Author: camille
+ * @Date: 2020/12/09 20:45
+ */
+public class FrameSoakClient extends SoakClient {
+
+    private static final int MAX_FRAME = 64 * 1024;
+    private static final int HEADER = 14;
+    private static final byte HELLO = 1;
+    private static final byte TEXT = 2;
+    private static final byte CHUNK = 6;
+
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    public FrameSoakClient(String host, int port, int receiveBuffer) throws IOException {
+        super(host, port, receiveBuffer);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void login(String user) throws IOException {
+        // 第一行是支持的压缩算法（空表示不压缩），第二行是用户名
+        writeFrame(HELLO, ("\n" + (user != null ? user : "")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void send(String msg) throws IOException {
+        writeFrame(TEXT, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String receive() throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte type = in.readByte();
+            in.readByte(); // 标志位
+            in.readLong(); // 序号
+            if (length < 0 || length > MAX_FRAME - HEADER) {
+                throw new IOException("非法的帧长度：" + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            // 握手回复、重连通知等控制帧不算聊天消息
+            if (type == TEXT) {
+                return new String(payload, StandardCharsets.UTF_8);
+            }
+            // 服务器转发的分片开头是4字节的分片编号
+            if (type == CHUNK && length >= 4) {
+                return new String(payload, 4, length - 4, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    @Override
+    public void sendHalf(int size) throws IOException {
+        // 帧头声明了完整长度，负载只写一半，服务器会一直等剩下的字节
+        writeHeader(TEXT, Math.min(size, MAX_FRAME - HEADER));
+        out.write(new byte[Math.min(size, MAX_FRAME - HEADER) / 2]);
+        out.flush();
+    }
+
+    @Override
+    public void sendOversized() throws IOException {
+        // 帧头声明的长度超过上限，服务器应该直接断开，而不是按这个长度分配内存
+        writeHeader(TEXT, MAX_FRAME * 16);
+        out.write(new byte[MAX_FRAME]);
+        out.flush();
+    }
+
+    private void writeFrame(byte type, byte[] payload) throws IOException {
+        writeHeader(type, payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    private void writeHeader(byte type, int length) throws IOException {
+        out.writeInt(length);
+        out.writeByte(type);
+        out.writeByte(0);
+        out.writeLong(0);
+    }
+
+}
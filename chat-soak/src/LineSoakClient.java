@@ -0,0 +1,67 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @FileName: LineSoakClient.java
+ * @Description: BIO聊天室的协议：第一行是昵称，之后每行一条消息
+ * @Author: camille
+ * @Date: 2020/12/09 20:30
+ */
+public class LineSoakClient extends SoakClient {
+
+    // 超长消息的长度，远超BIO服务器一行的长度上限，服务器应该断开这个连接
+    private static final int OVERSIZED = 4 * 1024 * 1024;
+    // BIO服务器拒绝重复的昵称，匿名连接自动编号
+    private static final AtomicLong ANONYMOUS = new AtomicLong();
+
+    private BufferedReader reader;
+    private OutputStream out;
+
+    public LineSoakClient(String host, int port, int receiveBuffer) throws IOException {
+        super(host, port, receiveBuffer);
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = socket.getOutputStream();
+    }
+
+    @Override
+    public void login(String user) throws IOException {
+        send(user != null ? user : "soak-" + ANONYMOUS.incrementAndGet());
+    }
+
+    @Override
+    public void send(String msg) throws IOException {
+        out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    @Override
+    public String receive() throws IOException {
+        return reader.readLine();
+    }
+
+    @Override
+    public void sendHalf(int size) throws IOException {
+        out.write(filler(size / 2));
+        out.flush();
+    }
+
+    @Override
+    public void sendOversized() throws IOException {
+        byte[] line = filler(OVERSIZED + 1);
+        line[OVERSIZED] = '\n';
+        out.write(line);
+        out.flush();
+    }
+
+    private static byte[] filler(int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'x');
+        return bytes;
+    }
+
+}
@@ -0,0 +1,94 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * @FileName: SoakClient.java
+ * @Description: 压测用的阻塞客户端，只实现发消息、收消息和几种故意出错的写法，
+ *               BIO和NIO聊天室的协议不同，由子类各自实现
+ * @Author: camille
+ * @Date: 2020/12/09 20:15
+ */
+public abstract class SoakClient implements Closeable {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    protected final Socket socket = new Socket();
+
+    protected SoakClient(String host, int port, int receiveBuffer) throws IOException {
+        // 接收缓冲区必须在连接之前设置才能影响TCP窗口
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+    }
+
+    /**
+     * 按协议登录，user为null时匿名登录
+     * @param user
+     * @throws IOException
+     */
+    public abstract void login(String user) throws IOException;
+
+    public abstract void send(String msg) throws IOException;
+
+    /**
+     * 阻塞读取下一条聊天消息
+     * @return 消息文本，连接关闭时返回null
+     * @throws IOException
+     */
+    public abstract String receive() throws IOException;
+
+    /**
+     * 开始发送一条size字节的消息，只写出前一半就返回，用来模拟写到一半时断开
+     * @param size
+     * @throws IOException
+     */
+    public abstract void sendHalf(int size) throws IOException;
+
+    // 发送一条超过服务器上限的消息
+    public abstract void sendOversized() throws IOException;
+
+    // 读取一个字节，慢速读者用它一点一点地读
+    public int readByte() throws IOException {
+        return socket.getInputStream().read();
+    }
+
+    /**
+     * 读掉服务器发来的所有数据，直到连接关闭。只发不收的客户端也要读，
+     * 否则接收缓冲区满了以后服务器写不进去，压测本身就成了一个慢速读者
+     * @throws IOException
+     */
+    public void discard() throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) >= 0);
+    }
+
+    // SO_LINGER为0时close发送RST而不是FIN，服务器那一侧的读写会直接报错
+    public void reset() {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (IOException ignored) {
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static SoakClient open(String mode, String host, int port, int receiveBuffer) throws IOException {
+        if ("bio".equals(mode)) {
+            return new LineSoakClient(host, port, receiveBuffer);
+        }
+        return new FrameSoakClient(host, port, receiveBuffer);
+    }
+
+}
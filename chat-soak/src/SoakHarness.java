@@ -0,0 +1,516 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @FileName: SoakHarness.java
+ * @Description: 聊天服务器的长时间压测：在子进程中启动BIO或NIO服务器，持续发送带时间戳的消息，
+ *               同时注入慢速读者、写到一半时RST断开、频繁连接断开和超长消息这几种故障，
+ *               每隔一段时间报告吞吐、延迟、文件描述符、RSS和GC后的堆，结束时检查泄漏和漂移，
+ *               不达标时以非0状态退出。只能在Linux本机运行，依赖/proc读取服务器进程的状态。
+ *               用法：SoakHarness bio|nio <服务器classpath> [分钟数，默认60] [报告间隔秒数，默认60]
+ * @Author: camille
+ * @Date: 2020/12/09 21:00
+ */
+public class SoakHarness {
+
+    private static final String HOST = "127.0.0.1";
+    // 两个服务器的默认端口，BIO服务器不能指定端口
+    private static final int PORT = 8888;
+    private static final int DEFAULT_MINUTES = 60;
+    private static final int DEFAULT_INTERVAL = 60;
+    // 限制服务器的堆，内存泄漏能在几个小时内暴露出来
+    private static final String SERVER_HEAP = "-Xmx256m";
+    private static final long START_TIMEOUT = 30 * 1000;
+
+    // 稳定负载：几个发送者持续发带时间戳的消息（收到的广播都读掉），一个接收者统计吞吐和延迟
+    private static final int SENDERS = 4;
+    private static final long SEND_INTERVAL = 20;
+    private static final int PADDING = 200;
+    // 故障注入
+    private static final int SLOW_READERS = 2;
+    private static final long SLOW_READ_INTERVAL = 50;    // 慢速读者每隔这么久读一个字节
+    private static final int SMALL_RECEIVE_BUFFER = 4096;
+    private static final long RESET_INTERVAL = 200;       // 写到一半的连接保持这么久后RST断开
+    private static final int RESET_SIZE = 32 * 1024;
+    private static final long CHURN_INTERVAL = 10;
+    private static final long OVERSIZED_INTERVAL = 5000;
+    private static final long RETRY_INTERVAL = 100;
+    // 停止故障注入后等待服务器清理连接的时间
+    private static final long SETTLE = 5000;
+
+    // 判定标准，都是和第一个报告周期比较
+    private static final int LEAK_SLACK = 16;              // 停止故障后多出来的文件描述符
+    private static final double HEAP_GROWTH = 2.0;         // GC后的堆最多增长到几倍
+    private static final long HEAP_SLACK = 32 * 1024;      // KB，增长不到这么多不算泄漏
+    private static final double THROUGHPUT_FLOOR = 0.5;    // 吞吐最少保持几成
+    private static final double LATENCY_CEILING = 5;       // p99延迟最多增长到几倍
+    private static final double LATENCY_SLACK = 50;        // 毫秒，p99低于这个值不算漂移
+
+    private static final Pattern TIMESTAMP = Pattern.compile("t=(\\d+)");
+    // 兼容JDK 8的-verbose:gc和JDK 9以后的统一日志，取GC之后的堆大小
+    private static final Pattern GC = Pattern.compile("(\\d+)([KMG])->(\\d+)([KMG])\\(");
+
+    private static String mode;
+    private static volatile boolean loading = true;
+    private static volatile boolean faulting = true;
+    private static volatile long heapAfterGc = -1;
+    // 长连接的客户端，停止时由主线程关闭，让阻塞在读上的线程退出
+    private static final List<SoakClient> steady = new CopyOnWriteArrayList<>();
+
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong delivered = new AtomicLong();
+    private static final AtomicLong churned = new AtomicLong();
+    private static final AtomicLong resets = new AtomicLong();
+    private static final AtomicLong oversized = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+    // 当前报告周期内的延迟样本，单位纳秒
+    private static final Object latencyLock = new Object();
+    private static long[] latencies = new long[4096];
+    private static int latencyCount;
+
+    // 一个报告周期的数据
+    private static class Sample {
+        private double throughput; // 条/秒
+        private double p50;        // 毫秒
+        private double p99;
+        private int fds;
+        private long rss;          // KB
+        private long heap;         // KB
+        private long threads;
+    }
+
+    // 故障注入的一个步骤，出错时由循环统一计数和重试
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private static SoakClient open(String user, int receiveBuffer) throws IOException {
+        SoakClient client = SoakClient.open(mode, HOST, PORT, receiveBuffer);
+        client.login(user);
+        return client;
+    }
+
+    private static void pause(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread spawn(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // 反复执行一个故障步骤，直到停止故障注入
+    private static Thread fault(String name, long interval, Step step) {
+        return spawn(name, () -> {
+            while (faulting) {
+                try {
+                    step.run();
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+                pause(interval);
+            }
+        });
+    }
+
+    private static void sender(int id) {
+        String padding = new String(new char[PADDING]).replace('\0', 'x');
+        SoakClient client = null;
+        while (loading) {
+            try {
+                if (client == null) {
+                    client = open("sender" + id, 0);
+                    steady.add(client);
+                    drain("sender-" + id + "-drain", client);
+                }
+                client.send("t=" + System.nanoTime() + " " + padding);
+                sent.incrementAndGet();
+                pause(SEND_INTERVAL);
+            } catch (IOException e) {
+                if (loading) {
+                    errors.incrementAndGet();
+                }
+                client = reopen(client);
+            }
+        }
+    }
+
+    // 发送者收到的广播都在单独的线程里读掉，连接关闭后线程退出
+    private static void drain(String name, SoakClient client) {
+        spawn(name, () -> {
+            try {
+                client.discard();
+            } catch (IOException ignored) {
+                // 发送者重连时关闭了旧连接
+            }
+        });
+    }
+
+    // 接收所有发送者的消息，按消息里的时间戳算出端到端延迟
+    private static void sink() {
+        SoakClient client = null;
+        while (loading) {
+            try {
+                if (client == null) {
+                    client = open("sink", 0);
+                    steady.add(client);
+                }
+                String msg = client.receive();
+                if (msg == null) {
+                    throw new IOException("服务器关闭了连接");
+                }
+                Matcher m = TIMESTAMP.matcher(msg);
+                if (m.find()) {
+                    record(System.nanoTime() - Long.parseLong(m.group(1)));
+                    delivered.incrementAndGet();
+                }
+            } catch (IOException e) {
+                if (loading) {
+                    errors.incrementAndGet();
+                }
+                client = reopen(client);
+            }
+        }
+    }
+
+    // 接收缓冲区很小、读得很慢的客户端，服务器给它写数据时很快就会写不进去
+    private static void slowReader(int id) {
+        SoakClient client = null;
+        while (faulting) {
+            try {
+                if (client == null) {
+                    client = open("slow" + id, SMALL_RECEIVE_BUFFER);
+                    steady.add(client);
+                }
+                if (client.readByte() < 0) {
+                    throw new IOException("服务器关闭了连接");
+                }
+                pause(SLOW_READ_INTERVAL);
+            } catch (IOException e) {
+                if (faulting) {
+                    errors.incrementAndGet();
+                }
+                client = reopen(client);
+            }
+        }
+        if (client != null) {
+            steady.remove(client);
+            client.close();
+        }
+    }
+
+    private static SoakClient reopen(SoakClient client) {
+        if (client != null) {
+            steady.remove(client);
+            client.close();
+        }
+        pause(RETRY_INTERVAL);
+        return null;
+    }
+
+    private static void record(long latency) {
+        synchronized (latencyLock) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = latency;
+        }
+    }
+
+    // 取出当前周期的延迟样本并排好序
+    private static long[] takeLatencies() {
+        long[] taken;
+        synchronized (latencyLock) {
+            taken = Arrays.copyOf(latencies, latencyCount);
+            latencyCount = 0;
+        }
+        Arrays.sort(taken);
+        return taken;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1e6;
+    }
+
+    private static int countFds(long pid) {
+        String[] fds = new File("/proc/" + pid + "/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    // 读取/proc/<pid>/status中的一项，比如VmRSS（KB）、Threads
+    private static long status(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath())) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    private static long toKb(String value, String unit) {
+        long n = Long.parseLong(value);
+        switch (unit) {
+            case "G":
+                return n * 1024 * 1024;
+            case "M":
+                return n * 1024;
+            default:
+                return n;
+        }
+    }
+
+    // 把服务器的输出写到日志文件，顺便解析GC日志
+    private static void watch(BufferedReader reader, File logFile) {
+        spawn("server-output", () -> {
+            try (PrintStream log = new PrintStream(new FileOutputStream(logFile), true, "UTF-8")) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    log.println(line);
+                    Matcher m = GC.matcher(line);
+                    if (m.find()) {
+                        heapAfterGc = toKb(m.group(3), m.group(4));
+                    }
+                }
+            } catch (IOException ignored) {
+                // 服务器进程退出后输出流被关闭
+            }
+        });
+    }
+
+    private static boolean listening() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(HOST, PORT), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String absolute(String classpath) {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(new File(entry).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static Sample sample(long pid, long intervalMillis) {
+        Sample s = new Sample();
+        long[] sorted = takeLatencies();
+        s.throughput = delivered.getAndSet(0) * 1000.0 / intervalMillis;
+        s.p50 = percentile(sorted, 0.5);
+        s.p99 = percentile(sorted, 0.99);
+        s.fds = countFds(pid);
+        s.rss = status(pid, "VmRSS");
+        s.threads = status(pid, "Threads");
+        s.heap = heapAfterGc;
+        return s;
+    }
+
+    private static void report(long elapsed, Sample s) {
+        System.out.println(String.format("[%02d:%02d:%02d] 吞吐=%.0f条/秒 p50=%.1fms p99=%.1fms 描述符=%d RSS=%dKB "
+                        + "GC后堆=%dKB 线程=%d | 发送=%d 连接抖动=%d RST=%d 超长=%d 错误=%d",
+                elapsed / 3600000, elapsed / 60000 % 60, elapsed / 1000 % 60,
+                s.throughput, s.p50, s.p99, s.fds, s.rss, s.heap, s.threads,
+                sent.get(), churned.get(), resets.get(), oversized.get(), errors.get()));
+    }
+
+    // 和第一个周期比较，返回发现的问题
+    private static List<String> judge(Sample first, Sample last, int baselineFds, int settledFds, boolean hung) {
+        List<String> problems = new ArrayList<>();
+        if (hung) {
+            problems.add("停止故障注入后仍有客户端线程卡住，服务器可能已经不响应");
+        }
+        if (baselineFds >= 0 && settledFds - baselineFds > LEAK_SLACK) {
+            problems.add("连接泄漏：故障前" + baselineFds + "个文件描述符，停止故障后" + settledFds + "个");
+        }
+        if (first.heap > 0 && last.heap > first.heap * HEAP_GROWTH && last.heap - first.heap > HEAP_SLACK) {
+            problems.add("堆增长：GC后的堆从" + first.heap + "KB增长到" + last.heap + "KB");
+        }
+        if (last.throughput < first.throughput * THROUGHPUT_FLOOR) {
+            problems.add(String.format("吞吐下降：%.0f条/秒 -> %.0f条/秒", first.throughput, last.throughput));
+        }
+        if (last.p99 < 0) {
+            problems.add("最后一个周期没有收到任何消息");
+        } else if (last.p99 > first.p99 * LATENCY_CEILING && last.p99 > LATENCY_SLACK) {
+            problems.add(String.format("延迟漂移：p99 %.1fms -> %.1fms", first.p99, last.p99));
+        }
+        return problems;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("用法：SoakHarness bio|nio <服务器classpath> [分钟数] [报告间隔秒数]");
+            System.exit(2);
+        }
+        mode = args[0];
+        if (!"bio".equals(mode) && !"nio".equals(mode)) {
+            // aio-tutorial里还没有AIO聊天室服务器，有了之后在SoakClient里加上它的协议
+            System.out.println("不支持的服务器：" + mode + "，目前只有bio和nio");
+            System.exit(2);
+        }
+        long duration = TimeUnit.MINUTES.toMillis(args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_MINUTES);
+        long interval = TimeUnit.SECONDS.toMillis(args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_INTERVAL);
+        if (listening()) {
+            System.out.println("端口" + PORT + "已经被占用，先停掉其他服务器");
+            System.exit(2);
+        }
+
+        // 服务器在单独的临时目录里运行，消息日志和输出都不会污染当前目录。
+        // 通过sh启动是为了拿到子进程的pid（JDK 8的Process没有pid()）
+        File dir = Files.createTempDirectory("chat-soak-" + mode).toFile();
+        String java = System.getProperty("java.home") + "/bin/java";
+        Process process = new ProcessBuilder("sh", "-c", "echo $$; exec \"$@\"", "sh",
+                java, SERVER_HEAP, "-verbose:gc", "-Dfile.encoding=UTF-8",
+                "-cp", absolute(args[1]), "server.ChatServer")
+                .directory(dir)
+                .redirectErrorStream(true)
+                .start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        long pid = Long.parseLong(reader.readLine().trim());
+        watch(reader, new File(dir, "server.log"));
+        System.out.println("服务器pid=" + pid + "，工作目录：" + dir);
+
+        int code = 1;
+        try {
+            code = soak(process, pid, dir, duration, interval);
+        } finally {
+            loading = false;
+            faulting = false;
+            for (SoakClient client : steady) {
+                client.close();
+            }
+            process.destroy();
+            if (!process.waitFor(15, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        System.exit(code);
+    }
+
+    private static int soak(Process process, long pid, File dir, long duration, long interval) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (!listening()) {
+            if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                System.out.println("服务器没有启动，查看" + new File(dir, "server.log"));
+                return 1;
+            }
+            pause(RETRY_INTERVAL);
+        }
+
+        // 先建立稳定负载，记下故障前的文件描述符数
+        spawn("sink", SoakHarness::sink);
+        for (int i = 0; i < SENDERS; i++) {
+            int id = i;
+            spawn("sender-" + i, () -> sender(id));
+        }
+        pause(SETTLE);
+        int baselineFds = countFds(pid);
+        takeLatencies();
+        delivered.set(0);
+
+        List<Thread> faults = new ArrayList<>();
+        for (int i = 0; i < SLOW_READERS; i++) {
+            int id = i;
+            faults.add(spawn("slow-reader-" + i, () -> slowReader(id)));
+        }
+        // 帧头或半行写出去之后停一会儿，让服务器往它的小接收窗口里写满，再用RST打断双方的写
+        faults.add(fault("reset", RESET_INTERVAL, () -> {
+            SoakClient client = open(null, SMALL_RECEIVE_BUFFER);
+            try {
+                client.sendHalf(RESET_SIZE);
+                pause(RESET_INTERVAL);
+            } finally {
+                client.reset();
+                resets.incrementAndGet();
+            }
+        }));
+        faults.add(fault("churn", CHURN_INTERVAL, () -> {
+            open(null, 0).close();
+            churned.incrementAndGet();
+        }));
+        faults.add(fault("oversized", OVERSIZED_INTERVAL, () -> {
+            SoakClient client = open(null, 0);
+            try {
+                client.sendOversized();
+            } catch (IOException e) {
+                // 服务器发现超长后提前断开，这是期望的结果
+            } finally {
+                client.close();
+                oversized.incrementAndGet();
+            }
+        }));
+
+        long start = System.currentTimeMillis();
+        long last = start;
+        Sample first = null;
+        Sample latest = null;
+        while (last - start < duration && process.isAlive()) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(interval, start + duration - last));
+            long now = System.currentTimeMillis();
+            latest = sample(pid, now - last);
+            last = now;
+            report(now - start, latest);
+            if (first == null) {
+                first = latest;
+            }
+        }
+        if (!process.isAlive()) {
+            System.out.println("服务器进程意外退出，查看" + new File(dir, "server.log"));
+            return 1;
+        }
+
+        // 停止故障注入，等服务器清理掉断开的连接，再和故障前比较文件描述符
+        faulting = false;
+        boolean hung = false;
+        for (Thread thread : faults) {
+            thread.join(SETTLE);
+            hung |= thread.isAlive();
+        }
+        pause(SETTLE);
+        int settledFds = countFds(pid);
+        System.out.println("文件描述符：故障前" + baselineFds + "，停止故障后" + settledFds);
+
+        List<String> problems = judge(first, latest, baselineFds, settledFds, hung);
+        for (String problem : problems) {
+            System.out.println(problem);
+        }
+        if (!problems.isEmpty()) {
+            return 1;
+        }
+        System.out.println("压测通过");
+        return 0;
+    }
+
+}
@@ -0,0 +1,35 @@
+package client;
+
+import java.util.Random;
+
+/**
+ * @FileName: Backoff.java
+ * @Description: 重连的指数退避，每次在[0, 上限)之间随机取值，上限随失败次数翻倍
+ * @Author: camille
+ * @Date: 2020/11/29 16:10
+ */
+public class Backoff {
+
+    private final long base;
+    private final long max;
+    private int attempt;
+    private Random random = new Random();
+
+    public Backoff(long base, long max) {
+        this.base = base;
+        this.max = max;
+    }
+
+    // 下一次重连前等待的毫秒数
+    public long next() {
+        long ceiling = Math.min(max, base << Math.min(attempt, 20));
+        attempt++;
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    // 连接成功后从头开始计算
+    public void reset() {
+        attempt = 0;
+    }
+
+}
@@ -1,7 +1,10 @@
 package client;
 
 import client.UserInputHandler;
+import protocol.DeflateCodec;
+import protocol.Frame;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -9,7 +12,12 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @FileName: ChatClient.java
@@ -22,29 +30,63 @@ public class ChatClient {
     private final static String DEFAULT_SERVER_HOST = "127.0.0.1";
     private final static int DEFAULT_SERVER_PORT = 8888;
     private final String QUIT = "quit";
-    private final int BUFFER = 1024;
-
+    // 意外断线后的重连间隔，从500毫秒开始翻倍，最多30秒
+    private final static long BACKOFF_BASE = 500;
+    private final static long BACKOFF_MAX = 30 * 1000;
+    // 每连续收到这么多条消息向服务器确认一次
+    private final static int ACK_EVERY = 64;
 
     private String host;
     private int port;
+    // 用户名，服务器按用户名保存游标，重连后补发离线期间的消息
+    private String user;
     private SocketChannel client;
 
     // 伪异步的线程池 -> selector
     private Selector selector;
-    // 通道的写入读出需要buffer
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
+    // 通道的读出需要buffer，至少能放下一个完整的帧
+    private ByteBuffer rBuffer = ByteBuffer.allocate(Frame.MAX_FRAME);
     // 解决乱码问题
     private Charset charset = StandardCharsets.UTF_8;
+    private DeflateCodec codec = new DeflateCodec();
+    // 服务器在握手时同意使用deflate，输入线程会读取
+    private volatile boolean deflate;
+    // 输入线程读取，判断当前能不能发送消息
+    private volatile boolean connected;
+    // 服务器停机时通知的重连等待时间，-1表示意外断线，按退避策略等待
+    private long reconnectDelay = -1;
+    private Backoff backoff = new Backoff(BACKOFF_BASE, BACKOFF_MAX);
+    // 用户输入线程只启动一次，重连后继续使用
+    private boolean inputStarted;
+    // 用户输入了退出指令
+    private CountDownLatch quit = new CountDownLatch(1);
+    // 已经按顺序显示的最大序号，重连后继续有效，用来去重和发现缺口
+    private volatile long lastSeq;
+    // 序号跳过了中间的消息时，先暂存后面到达的消息，缺口补齐后再按顺序显示
+    private TreeMap<Long, String> outOfOrder = new TreeMap<>();
+    // 服务器回答没有的序号区间，起始序号 -> 结束序号，显示到这里时直接跳过
+    private TreeMap<Long, Long> missing = new TreeMap<>();
+    // 已经请求重发到的序号，避免同一个缺口重复请求
+    private long resendRequested;
+    private int unacked;
+    // 正在接收的大消息，序号 -> 已经收到的分片
+    private Map<Long, Stream> streams = new HashMap<>();
+
+    // 一条大消息已经拼好的内容和下一个应该收到的分片编号
+    private static class Stream {
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int next;
+    }
 
 
-    public ChatClient(String host, int port) {
+    public ChatClient(String host, int port, String user) {
         this.host = host;
         this.port = port;
+        this.user = user;
     }
 
-    public ChatClient() {
-        this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
+    public ChatClient(String user) {
+        this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT, user);
     }
 
     public boolean readyToQuit(String msg) {
@@ -62,6 +104,26 @@ public class ChatClient {
     }
 
     private void start() {
+        try {
+            while (quit.getCount() > 0) {
+                connect();
+                // 服务器停机时会告诉客户端等多久再连，否则按指数退避加随机抖动，避免所有客户端同时重连
+                long delay = reconnectDelay >= 0 ? reconnectDelay : backoff.next();
+                if (quit.getCount() > 0) {
+                    System.out.println("与服务器的连接已断开，" + delay + "毫秒后重连");
+                }
+                if (quit.await(delay, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void connect() {
+        reconnectDelay = -1;
+        rBuffer.clear();
         try {
             client = SocketChannel.open();
             client.configureBlocking(false); // 改为非阻塞模式
@@ -81,12 +143,15 @@ public class ChatClient {
                 selectionKeys.clear();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            // 服务器不可用或者连接被重置，交给start重连
+            System.out.println("连接服务器失败：" + e.getMessage());
         } catch (ClosedSelectorException e) {
-            // 其实不算异常，只是因为客户输入了退出指令，算用户正常退出
+            // 其实不算异常，只是因为客户输入了退出指令，或者服务器断开了连接
         } finally {
+            connected = false;
             // 调用已经关闭的对象，不会报错。只是不会执行任何操作
             close(selector);
+            close(client);
         }
     }
 
@@ -98,30 +163,200 @@ public class ChatClient {
             // 正在建立连接，isConnectionPending=false需要等待
             if (client.isConnectionPending()) {
                 client.finishConnect(); // 正式地建立好连接
+                // 告诉服务器本客户端支持的压缩算法、用户名和已经收到的最大序号
+                String hello = DeflateCodec.NAME + "\n" + user + "\n" + lastSeq;
+                write(Frame.encode(Frame.HELLO, (byte) 0, hello.getBytes(charset)));
+                connected = true;
                 // 处理用户的输入信息，需要一个额外的线程处理
-                new Thread((new UserInputHandler(this))).start();
+                if (!inputStarted) {
+                    inputStarted = true;
+                    System.out.println("以" + user + "登录，输入 @用户名 消息 可以私聊");
+                    new Thread((new UserInputHandler(this))).start();
+                }
             }
             // 注册监听read事件
             client.register(selector, SelectionKey.OP_READ);
         } else if (key.isReadable()) {
             // read事件，服务器转发消息到客户端，触发socketChannel的read事件
             SocketChannel client = (SocketChannel) key.channel();
-            String msg = receive(client); // 获取数据
-            if (msg.isEmpty()) {
+            boolean open = receive(client);
+            // 一次可能收到多个帧，也可能只有半个。服务器关闭连接之前发来的帧（比如重连通知）也要处理
+            rBuffer.flip();
+            Frame frame;
+            while ((frame = Frame.decode(rBuffer)) != null) {
+                handleFrame(frame);
+            }
+            rBuffer.compact();
+            if (!open) {
                 // 连接出现异常，服务器那边出现异常
                 close(selector); // 客户端退出
-            } else {
+            }
+        }
+    }
+
+    private void handleFrame(Frame frame) throws IOException {
+        if (frame.getType() == Frame.HELLO) {
+            deflate = DeflateCodec.NAME.equals(new String(frame.getPayload(), charset));
+            backoff.reset(); // 握手成功，下次断线重新计算退避
+            // 之前的连接上请求过的重发随连接一起丢了，还缺的消息要重新请求
+            resendRequested = lastSeq;
+        } else if (frame.getType() == Frame.RECONNECT) {
+            // 服务器即将停机，按服务器给的随机时间重连
+            reconnectDelay = Long.parseLong(new String(frame.getPayload(), charset));
+            close(selector);
+        } else if (frame.getType() == Frame.ACK) {
+            // 自己发出的消息分到的序号，只推进序号，不显示
+            receive(frame.getSeq(), null);
+        } else if (frame.getType() == Frame.MISSING) {
+            skip(frame.getSeq(), Long.parseLong(new String(frame.getPayload(), charset)));
+        } else if (frame.getType() == Frame.CHUNK) {
+            receiveChunk(frame);
+        } else if (frame.getType() == Frame.TEXT) {
+            byte[] payload = frame.getPayload();
+            if (frame.isCompressed()) {
+                payload = codec.decompress(payload, Frame.MAX_PAYLOAD);
+            }
+            String msg = new String(payload, charset);
+            if (frame.getSeq() == 0) {
+                // 私聊、系统提示等不参与排序
                 System.out.println(msg);
+            } else {
+                receive(frame.getSeq(), msg);
+            }
+        }
+    }
+
+    // 大消息的分片先按序号收集，最后一个分片到达后作为一条完整的消息显示。
+    // 重发和重连补发会把已经收到的分片再发一遍，按分片编号只接收下一个应该到的分片
+    private void receiveChunk(Frame frame) throws IOException {
+        long seq = frame.getSeq();
+        if (seq <= lastSeq || outOfOrder.containsKey(seq)) {
+            streams.remove(seq);
+            return; // 重连后重复收到的分片
+        }
+        byte[] payload = frame.getPayload();
+        if (frame.isCompressed()) {
+            payload = codec.decompress(payload, Frame.MAX_PAYLOAD);
+        }
+        if (payload.length < 4) {
+            return;
+        }
+        int index = ByteBuffer.wrap(payload).getInt();
+        Stream stream = streams.get(seq);
+        if (stream == null) {
+            if (index != 0) {
+                return; // 没赶上第一个分片，等发现缺口后重发整条消息
             }
+            stream = new Stream();
+            streams.put(seq, stream);
+        }
+        if (index != stream.next) {
+            return; // 重复的分片
+        }
+        stream.data.write(payload, 4, payload.length - 4);
+        stream.next++;
+        if (frame.isLast()) {
+            streams.remove(seq);
+            receive(seq, new String(stream.data.toByteArray(), charset));
         }
     }
 
-    private String receive(SocketChannel client) throws IOException {
+    /**
+     * 按序号显示聊天室消息：重复的丢掉，提前到达的暂存并请求重发缺口，缺口补齐后按顺序显示
+     * @param seq
+     * @param msg 为null时是自己发出的消息，只占一个序号，不显示
+     * @throws IOException
+     */
+    private void receive(long seq, String msg) throws IOException {
+        // 第一次连接时从服务器发来的第一条消息开始计数
+        if (lastSeq == 0) {
+            lastSeq = seq - 1;
+        }
+        if (seq <= lastSeq || outOfOrder.containsKey(seq)) {
+            return; // 重连后重复收到的消息
+        }
+        if (seq > lastSeq + 1) {
+            outOfOrder.put(seq, msg);
+            if (seq - 1 > resendRequested) {
+                long from = Math.max(lastSeq, resendRequested) + 1;
+                long to = seq - 1;
+                // 正在接收的大消息不算缺口，它的分片还在路上
+                while (from <= to && streams.containsKey(from)) {
+                    from++;
+                }
+                while (from <= to && streams.containsKey(to)) {
+                    to--;
+                }
+                if (from <= to) {
+                    write(Frame.encode(Frame.RESEND, (byte) 0, from, String.valueOf(to).getBytes(charset)));
+                }
+                resendRequested = seq - 1;
+            }
+            return;
+        }
+        if (msg != null) {
+            System.out.println(msg);
+        }
+        lastSeq = seq;
+        advance();
+        if (++unacked >= ACK_EVERY) {
+            ack();
+        }
+    }
+
+    /**
+     * 服务器没有序号从from到to的消息（已经过期，或者没有写进日志），不再等它们，
+     * 否则后面暂存的消息永远显示不出来
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    private void skip(long from, long to) throws IOException {
+        if (lastSeq == 0 || to <= lastSeq) {
+            return;
+        }
+        Long known = missing.get(from);
+        missing.put(from, known != null ? Math.max(known, to) : to);
+        long before = lastSeq;
+        advance();
+        if (lastSeq > before) {
+            ack();
+        }
+    }
+
+    // 缺口补齐了，把后面暂存的连续消息一起显示，服务器回答没有的序号直接跳过
+    private void advance() {
+        while (true) {
+            Map.Entry<Long, String> next = outOfOrder.firstEntry();
+            Map.Entry<Long, Long> gap = missing.firstEntry();
+            if (next != null && next.getKey() <= lastSeq) {
+                outOfOrder.pollFirstEntry();
+            } else if (next != null && next.getKey() == lastSeq + 1) {
+                if (next.getValue() != null) {
+                    System.out.println(next.getValue());
+                }
+                lastSeq = next.getKey();
+                outOfOrder.pollFirstEntry();
+            } else if (gap != null && gap.getKey() <= lastSeq + 1) {
+                lastSeq = Math.max(lastSeq, gap.getValue());
+                missing.pollFirstEntry();
+            } else {
+                break;
+            }
+        }
+    }
+
+    // 告诉服务器已经连续收到的最大序号，服务器据此保存游标
+    private void ack() throws IOException {
+        unacked = 0;
+        write(Frame.encode(Frame.ACK, (byte) 0, lastSeq, new byte[0]));
+    }
+
+    private boolean receive(SocketChannel client) throws IOException {
         // channel -> buffer
-        rBuffer.clear();
-        while (client.read(rBuffer) > 0);
-        rBuffer.flip(); // 转为读模式
-        return String.valueOf(charset.decode(rBuffer));
+        int n;
+        while ((n = client.read(rBuffer)) > 0);
+        return n >= 0;
     }
 
     public void send(String msg) throws IOException {
@@ -129,22 +364,82 @@ public class ChatClient {
         if (msg.isEmpty()) {
             return;
         }
-        // buffer -> channel
-        wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
-        wBuffer.flip();
-        while (wBuffer.hasRemaining()) {
-            client.write(wBuffer);
+        // 检查用户是否准备退出，断线期间也可以退出
+        if (readyToQuit(msg)) {
+            quit.countDown();
+        }
+        if (!connected) {
+            if (quit.getCount() > 0) {
+                System.out.println("尚未连接到服务器，消息未发送");
+            } else {
+                close(selector); // 正在连接中也直接放弃
+            }
+            return;
+        }
+        byte[] bytes = msg.getBytes(charset);
+        if (bytes.length > Frame.CHUNK_SIZE) {
+            if (msg.startsWith("@")) {
+                System.out.println("私聊消息过长，最多" + Frame.CHUNK_SIZE + "字节");
+            } else {
+                sendChunks(bytes);
+            }
+        } else {
+            // buffer -> channel
+            write(encode(Frame.TEXT, (byte) 0, bytes));
         }
 
-        // 检查用户是否准备退出
-        if (readyToQuit(msg)) {
+        if (quit.getCount() == 0) {
+            // 退出前确认最后收到的位置，下次登录从这里继续
+            ack();
             close(selector);
         }
     }
 
+    // 大消息拆成分片发送，分片边界落在UTF-8字符之间
+    private void sendChunks(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int end = Math.min(offset + Frame.CHUNK_SIZE, bytes.length);
+            // 10xxxxxx是多字节字符的后续字节，不能从这里切开
+            while (end < bytes.length && (bytes[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            byte flags = 0;
+            if (offset == 0) {
+                flags |= Frame.FIRST;
+            }
+            if (end == bytes.length) {
+                flags |= Frame.LAST;
+            }
+            byte[] chunk = new byte[end - offset];
+            System.arraycopy(bytes, offset, chunk, 0, chunk.length);
+            write(encode(Frame.CHUNK, flags, chunk));
+            offset = end;
+        }
+    }
+
+    // 协商了压缩并且消息足够长，才压缩后发送
+    private ByteBuffer encode(byte type, byte flags, byte[] bytes) {
+        if (deflate && bytes.length >= DeflateCodec.THRESHOLD) {
+            byte[] compressed = codec.compress(bytes);
+            if (compressed.length < bytes.length) {
+                return Frame.encode(type, (byte) (flags | Frame.COMPRESSED), compressed);
+            }
+        }
+        return Frame.encode(type, flags, bytes);
+    }
+
+    // 输入线程和selector线程都会写通道，加锁保证帧不会交错
+    private synchronized void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
     public static void main(String[] args) {
-        ChatClient chatClient = new ChatClient();
+        // 不指定用户名时使用系统用户名
+        String user = args.length > 0 ? args[0] : System.getProperty("user.name");
+        ChatClient chatClient = new ChatClient(user);
         chatClient.start();
     }
 
@@ -0,0 +1,178 @@
+package demo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @FileName: FootprintDemo.java
+ * @Description: 测量服务器的启动耗时和空闲连接的内存开销：在子进程中以footprint模式启动服务器，
+ *               建立N个不发任何数据的连接，比较前后的堆内存和RSS，超出预算时以非0状态退出。
+ *               用法：FootprintDemo [连接数，默认10000]，10万连接需要调大ulimit -n
+ * @Author: camille
+ * @Date: 2020/12/01 21:10
+ */
+public class FootprintDemo {
+
+    private static final int PORT = 9998;
+    private static final int DEFAULT_CLIENTS = 10000;
+    // 每个回环地址最多使用的本地端口数，超过后换下一个127.0.0.x，突破单个地址的临时端口上限
+    private static final int PORTS_PER_ADDRESS = 20000;
+    // 每个空闲连接的预算，单位KB
+    private static final double HEAP_BUDGET = 1.5;
+    private static final double RSS_BUDGET = 4;
+    private static final long TIMEOUT = 120 * 1000;
+    // 失败时打印子进程最近的这么多行输出
+    private static final int OUTPUT_LINES = 50;
+
+    private static final Pattern STARTED = Pattern.compile("耗时(\\d+)毫秒");
+    private static final Pattern FOOTPRINT = Pattern.compile("连接数=(\\d+) 堆=(\\d+)KB RSS=(-?\\d+)KB");
+
+    // 子进程最近一次报告的数据，下标0为连接数，1为堆，2为RSS
+    private static volatile long[] latest;
+    private static volatile long[] baseline;
+    private static volatile long startup = -1;
+    // 子进程最近的输出，启动失败（比如找不到类）时看得到原因
+    private static final Deque<String> output = new ArrayDeque<>();
+
+    private static void watch(Process process) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (output) {
+                        output.addLast(line);
+                        if (output.size() > OUTPUT_LINES) {
+                            output.removeFirst();
+                        }
+                    }
+                    Matcher started = STARTED.matcher(line);
+                    if (started.find()) {
+                        startup = Long.parseLong(started.group(1));
+                    }
+                    Matcher m = FOOTPRINT.matcher(line);
+                    if (m.find()) {
+                        long[] values = {Long.parseLong(m.group(1)), Long.parseLong(m.group(2)), Long.parseLong(m.group(3))};
+                        if (values[0] == 0 && baseline == null) {
+                            baseline = values;
+                        }
+                        latest = values;
+                    }
+                }
+            } catch (IOException ignored) {
+                // 子进程被停掉后输出流被关闭
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 等子进程报告的连接数达到connections，子进程退出时不再等
+    private static boolean await(Process process, int connections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline && process.isAlive()) {
+            long[] values = latest;
+            if (values != null && values[0] == connections) {
+                return true;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return false;
+    }
+
+    private static void printOutput() {
+        System.out.println("服务器输出：");
+        synchronized (output) {
+            for (String line : output) {
+                System.out.println(line);
+            }
+        }
+    }
+
+    // 子进程的工作目录不同，classpath里的相对路径要先转成绝对路径
+    private static String absolute(String classpath) {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(new File(entry).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        String java = System.getProperty("java.home") + "/bin/java";
+        // 服务器在临时目录里运行，不在当前目录下留下消息日志
+        Process process = new ProcessBuilder(java, "-Dchat.footprint=true", "-Dfile.encoding=UTF-8",
+                "-cp", absolute(System.getProperty("java.class.path")), "server.ChatServer", String.valueOf(PORT))
+                .directory(Files.createTempDirectory("chat-footprint").toFile())
+                .redirectErrorStream(true)
+                .start();
+        watch(process);
+        List<SocketChannel> clients = new ArrayList<>();
+        int code;
+        try {
+            code = measure(process, n, clients);
+            if (code != 0) {
+                // 关闭连接之前打印，不被断开连接的日志冲掉
+                printOutput();
+            }
+        } finally {
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            process.destroy();
+        }
+        // 先停掉子进程再退出，失败时也不会留下占着端口的服务器
+        System.exit(code);
+    }
+
+    private static int measure(Process process, int n, List<SocketChannel> clients) throws IOException, InterruptedException {
+        if (!await(process, 0)) {
+            System.out.println("服务器没有启动");
+            return 1;
+        }
+        System.out.println("服务器启动耗时：" + startup + "毫秒");
+
+        for (int i = 0; i < n; i++) {
+            SocketChannel client = SocketChannel.open();
+            clients.add(client);
+            client.bind(new InetSocketAddress("127.0.0." + (1 + i / PORTS_PER_ADDRESS), 0));
+            client.connect(new InetSocketAddress("127.0.0.1", PORT));
+        }
+        if (!await(process, n)) {
+            System.out.println("服务器没有接受全部连接");
+            return 1;
+        }
+
+        long[] idle = latest;
+        double heapPer = (double) (idle[1] - baseline[1]) / n;
+        double rssPer = (double) (idle[2] - baseline[2]) / n;
+        System.out.println("空闲连接数：" + n);
+        System.out.println(String.format("堆：%dKB -> %dKB，每个连接%.2fKB，预算%.2fKB",
+                baseline[1], idle[1], heapPer, HEAP_BUDGET));
+        System.out.println(String.format("RSS：%dKB -> %dKB，每个连接%.2fKB，预算%.2fKB",
+                baseline[2], idle[2], rssPer, RSS_BUDGET));
+        if (heapPer > HEAP_BUDGET || (baseline[2] >= 0 && rssPer > RSS_BUDGET)) {
+            System.out.println("空闲连接的内存开销超出预算");
+            return 1;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,113 @@
+package demo;
+
+import protocol.Frame;
+import server.MessageStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * @FileName: LogRetentionDemo.java
+ * @Description: 检查消息日志的保留策略和重启耗时：一个一直不上线的用户不能让日志无限增长，
+ *               所有游标越过的段要删除，重启时从检查点恢复索引，不从头扫描日志。不达标时以非0状态退出
+ * @Author: camille
+ * @Date: 2020/12/12 15:40
+ */
+public class LogRetentionDemo {
+
+    private static final long SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int MESSAGES = 400000;
+    private static final int SIZE = 200;
+    // 在线用户每收到这么多条消息保存一次游标，和客户端的确认间隔一样
+    private static final int ACK_EVERY = 64;
+
+    private static long seq;
+
+    private static void fill(MessageStore store, long bytes) throws IOException {
+        byte[] payload = new byte[SIZE];
+        Arrays.fill(payload, (byte) 'x');
+        long until = store.end() + bytes;
+        while (store.end() < until) {
+            if (store.append(Frame.encode(Frame.TEXT, (byte) 0, ++seq, payload))) {
+                store.retain(Long.MAX_VALUE);
+            }
+            if (seq % ACK_EVERY == 0) {
+                store.saveCursor("online", store.end());
+            }
+        }
+    }
+
+    // 目录里所有段文件的大小
+    private static long diskUsage(File dir) {
+        long total = 0;
+        File[] files = dir.listFiles((d, name) -> name.startsWith("messages-"));
+        for (File file : files != null ? files : new File[0]) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    // 重新打开日志，返回耗时（毫秒），并检查恢复出来的序号和偏移
+    private static long reopen(File dir, long lastSeq, long probe, long offset) throws IOException {
+        long begin = System.nanoTime();
+        MessageStore store = new MessageStore(dir, SEGMENT_SIZE, MAX_SEGMENTS);
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        try {
+            if (store.lastSeq() != lastSeq || store.offset(probe) != offset) {
+                throw new IOException("重启后索引不一致：最大序号" + store.lastSeq() + "，期望" + lastSeq);
+            }
+        } finally {
+            store.close();
+        }
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("chat-retention").toFile();
+        MessageStore store = new MessageStore(dir, SEGMENT_SIZE, MAX_SEGMENTS);
+        // 两个用户都从日志开头开始，offline之后再也不上线
+        store.cursor("offline");
+        store.cursor("online");
+        int code = 0;
+
+        fill(store, (long) MESSAGES * (Frame.HEADER + SIZE));
+        long pinned = diskUsage(dir);
+        long limit = SEGMENT_SIZE * (MAX_SEGMENTS + 1);
+        System.out.println("写入" + seq + "条消息，离线用户的游标停在开头时日志占用" + pinned / 1024 + "KB，上限" + limit / 1024 + "KB");
+        if (pinned > limit) {
+            System.out.println("日志超出了最多段数");
+            code = 1;
+        }
+        if (store.cursor("offline") != store.start()) {
+            System.out.println("离线用户的游标没有跟着删除的段前移");
+            code = 1;
+        }
+
+        // 日志最大的时候重启，比较从检查点恢复和从头扫描
+        long lastSeq = store.lastSeq();
+        long probe = lastSeq - 1000;
+        long offset = store.offset(probe);
+        store.close();
+        long fromCheckpoint = reopen(dir, lastSeq, probe, offset);
+        new File(dir, "index.ckpt").delete();
+        long fullScan = reopen(dir, lastSeq, probe, offset);
+        System.out.println("重启耗时：从检查点恢复" + fromCheckpoint + "毫秒，没有检查点时扫描日志" + fullScan + "毫秒");
+
+        // 离线用户终于上线并读完，再写满一个段，之前的段都应该被删除
+        store = new MessageStore(dir, SEGMENT_SIZE, MAX_SEGMENTS);
+        store.saveCursor("offline", store.end());
+        fill(store, SEGMENT_SIZE);
+        store.close();
+        long released = diskUsage(dir);
+        System.out.println("所有游标都越过之后日志占用" + released / 1024 + "KB");
+        if (released > SEGMENT_SIZE * 2) {
+            System.out.println("游标已经越过的段没有删除");
+            code = 1;
+        }
+        System.exit(code);
+    }
+
+}
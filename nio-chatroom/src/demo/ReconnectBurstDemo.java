@@ -0,0 +1,218 @@
+package demo;
+
+import client.Backoff;
+import protocol.Frame;
+import server.ChatServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @FileName: ReconnectBurstDemo.java
+ * @Description: 测量服务器重启时的重连洪峰：N个客户端连上旧服务器，旧服务器排空后立即启动新服务器，
+ *               统计新服务器每100毫秒收到的重连数，峰值超过预算时以非0状态退出
+ * @Author: camille
+ * @Date: 2020/11/29 17:20
+ */
+public class ReconnectBurstDemo {
+
+    private static final int PORT = 9999;
+    private static final int DEFAULT_CLIENTS = 1000;
+    private static final int BUCKET = 100; // 统计粒度，毫秒
+    // 任意100毫秒内重连的客户端不能超过总数的10%
+    private static final double BURST_BUDGET = 0.1;
+    private static final long TIMEOUT = 60 * 1000;
+
+    // 一个轻量的客户端，所有客户端共用一个selector，只处理握手和重连
+    private static class BurstClient {
+        private final int id;
+        private SocketChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private Backoff backoff = new Backoff(500, 30 * 1000);
+        private long reconnectAt = -1; // 计划重连的时刻，-1表示没有计划
+        private boolean helloed;       // 收到了服务器的握手回复
+
+        private BurstClient(int id) {
+            this.id = id;
+        }
+    }
+
+    private static Selector selector;
+
+    private static void connect(BurstClient c) throws IOException {
+        c.buffer.clear();
+        c.helloed = false;
+        c.reconnectAt = -1;
+        c.channel = SocketChannel.open();
+        c.channel.configureBlocking(false);
+        c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+        c.channel.connect(new InetSocketAddress("127.0.0.1", PORT));
+    }
+
+    // 连接断开：服务器通知过重连时间就按通知的来，否则按退避策略
+    private static void lost(BurstClient c, SelectionKey key) {
+        key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (c.reconnectAt < 0) {
+            c.reconnectAt = System.currentTimeMillis() + c.backoff.next();
+        }
+    }
+
+    /**
+     * 处理一轮事件
+     * @param clients
+     * @param reconnected 新服务器上完成握手的时刻，未统计时为null
+     * @param since
+     * @return 本轮完成握手的客户端数
+     */
+    private static int poll(List<BurstClient> clients, long[] reconnected, long since) throws IOException {
+        int done = 0;
+        selector.select(10);
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            BurstClient c = (BurstClient) key.attachment();
+            if (key.channel() != c.channel) {
+                key.cancel(); // 已经被重连替换掉的旧连接
+                continue;
+            }
+            try {
+                if (key.isConnectable()) {
+                    c.channel.finishConnect();
+                    ByteBuffer hello = Frame.encode(Frame.HELLO, (byte) 0, "\n".getBytes(StandardCharsets.UTF_8));
+                    while (hello.hasRemaining()) {
+                        c.channel.write(hello);
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                } else if (key.isReadable()) {
+                    if (c.channel.read(c.buffer) < 0) {
+                        lost(c, key);
+                        continue;
+                    }
+                    c.buffer.flip();
+                    Frame frame;
+                    while ((frame = Frame.decode(c.buffer)) != null) {
+                        if (frame.getType() == Frame.HELLO && !c.helloed) {
+                            c.helloed = true;
+                            c.backoff.reset();
+                            done++;
+                            if (reconnected != null) {
+                                reconnected[c.id] = System.currentTimeMillis() - since;
+                            }
+                        } else if (frame.getType() == Frame.RECONNECT) {
+                            long delay = Long.parseLong(new String(frame.getPayload(), StandardCharsets.UTF_8));
+                            c.reconnectAt = System.currentTimeMillis() + delay;
+                        }
+                    }
+                    c.buffer.compact();
+                }
+            } catch (IOException e) {
+                lost(c, key);
+            }
+        }
+        // 到时间的客户端发起重连
+        long now = System.currentTimeMillis();
+        for (BurstClient c : clients) {
+            if (c.reconnectAt >= 0 && c.reconnectAt <= now) {
+                connect(c);
+            }
+        }
+        return done;
+    }
+
+    private static void startServer(ChatServer server) {
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        selector = Selector.open();
+        // 新旧服务器共用一个临时数据目录，不在当前目录下留下消息日志
+        File dataDir = Files.createTempDirectory("chat-burst").toFile();
+
+        ChatServer oldServer = new ChatServer(PORT, dataDir);
+        startServer(oldServer);
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        // 所有客户端连上旧服务器
+        List<BurstClient> clients = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            BurstClient c = new BurstClient(i);
+            clients.add(c);
+            connect(c);
+        }
+        int connected = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (connected < n && System.currentTimeMillis() < deadline) {
+            connected += poll(clients, null, 0);
+        }
+        System.out.println(connected + "个客户端已连接旧服务器");
+
+        // 旧服务器排空的同时客户端继续处理事件，排空完成后立即启动新服务器
+        long start = System.currentTimeMillis();
+        Thread drainer = new Thread(() -> {
+            try {
+                oldServer.drain(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        drainer.start();
+        long[] reconnected = new long[n];
+        Arrays.fill(reconnected, -1);
+        boolean restarted = false;
+        int done = 0;
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (done < n && System.currentTimeMillis() < deadline) {
+            if (!restarted && !drainer.isAlive()) {
+                startServer(new ChatServer(PORT, dataDir));
+                restarted = true;
+            }
+            done += poll(clients, restarted ? reconnected : null, start);
+        }
+
+        // 按100毫秒分桶统计
+        long last = 0;
+        for (long t : reconnected) {
+            last = Math.max(last, t);
+        }
+        int[] buckets = new int[(int) (last / BUCKET) + 1];
+        for (long t : reconnected) {
+            if (t >= 0) {
+                buckets[(int) (t / BUCKET)]++;
+            }
+        }
+        int peak = 0;
+        for (int count : buckets) {
+            peak = Math.max(peak, count);
+        }
+        int budget = (int) Math.ceil(n * BURST_BUDGET);
+        System.out.println("重连完成：" + done + "/" + n + "，耗时" + last + "毫秒");
+        System.out.println("每" + BUCKET + "毫秒重连峰值：" + peak + "，预算：" + budget);
+        selector.close();
+        if (done < n || peak > budget) {
+            System.out.println("重连洪峰超出预算");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
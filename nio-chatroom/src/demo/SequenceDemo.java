@@ -0,0 +1,274 @@
+package demo;
+
+import protocol.Frame;
+import server.ChatServer;
+import server.MessageStore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @FileName: SequenceDemo.java
+ * @Description: 检查序号的连续性：几个客户端轮流发言，每个客户端收到的序号（包括自己消息的序号通知）
+ *               必须连续，否则ChatClient会把它当成缺口请求重发。再检查中间夹着别人消息的大消息，
+ *               重发时要从第一个分片一直发到最后一个分片。最后检查已经过期的消息：带着很旧的序号重连、
+ *               或者补发期间请求重发过期的序号，服务器都要明确回答没有，不能让客户端一直等。有问题时以非0状态退出
+ * @Author: camille
+ * @Date: 2020/12/11 20:30
+ */
+public class SequenceDemo {
+
+    private static final int PORT = 9997;
+    private static final int ROUNDS = 50;
+    // 读不到新帧超过这么久，认为服务器已经发完
+    private static final int QUIET = 500;
+    // 服务器启动前日志里已有的消息数，段很小，只保留最后一个段，前面的都已经过期
+    private static final int HISTORY = 400;
+
+    // 阻塞的裸帧客户端，只记录收到的帧
+    private static class RawClient {
+        private final String user;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        private RawClient(String user) throws IOException {
+            this(user, 0);
+        }
+
+        // lastSeq为之前的连接已经收到的最大序号，服务器从它之后开始补发
+        private RawClient(String user, long lastSeq) throws IOException {
+            this.user = user;
+            socket = new Socket("127.0.0.1", PORT);
+            socket.setSoTimeout(QUIET);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            write(Frame.encode(Frame.HELLO, (byte) 0, ("\n" + user + "\n" + lastSeq).getBytes(StandardCharsets.UTF_8)));
+            // 收到握手回复说明服务器已经登记了这个连接，之后的消息都不会错过
+            Frame hello = read();
+            if (hello == null || hello.getType() != Frame.HELLO) {
+                throw new IOException(user + "握手失败");
+            }
+        }
+
+        private void write(ByteBuffer frame) throws IOException {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            out.write(bytes);
+            out.flush();
+        }
+
+        private void send(String msg) throws IOException {
+            write(Frame.encode(Frame.TEXT, (byte) 0, msg.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void chunk(byte flags, String msg) throws IOException {
+            write(Frame.encode(Frame.CHUNK, flags, 0, msg.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void resend(long from, long to) throws IOException {
+            write(Frame.encode(Frame.RESEND, (byte) 0, from, String.valueOf(to).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // 读取一个帧，服务器一段时间内没有再发时返回null
+        private Frame read() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            byte type = in.readByte();
+            byte flags = in.readByte();
+            long seq = in.readLong();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return new Frame(type, flags, seq, payload);
+        }
+
+        // 一直读到收到一条聊天室消息
+        private void await(List<Frame> frames) throws IOException {
+            Frame frame;
+            while ((frame = read()) != null) {
+                frames.add(frame);
+                if (frame.getType() == Frame.TEXT && frame.getSeq() > 0) {
+                    return;
+                }
+            }
+            throw new IOException(user + "没有收到消息");
+        }
+
+        private List<Frame> drain(List<Frame> frames) throws IOException {
+            Frame frame;
+            while ((frame = read()) != null) {
+                frames.add(frame);
+            }
+            return frames;
+        }
+
+        private void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * 按ChatClient的规则检查收到的序号：聊天室消息、大消息的第一个分片和自己消息的序号通知都占一个序号
+     * @param client
+     * @param frames
+     * @return 会触发重发请求的缺口数
+     */
+    private static int gaps(RawClient client, List<Frame> frames) {
+        long last = 0;
+        int gaps = 0;
+        for (Frame frame : frames) {
+            boolean counted = frame.getType() == Frame.ACK
+                    || (frame.getType() == Frame.TEXT && frame.getSeq() > 0)
+                    || (frame.getType() == Frame.CHUNK && frame.isFirst());
+            if (!counted) {
+                continue;
+            }
+            if (last > 0 && frame.getSeq() != last + 1) {
+                System.out.println(client.user + "：序号" + last + "之后收到了" + frame.getSeq());
+                gaps++;
+            }
+            last = frame.getSeq();
+        }
+        return gaps;
+    }
+
+    /**
+     * 检查重发的一条大消息：分片编号从0开始连续，最后一个分片带结束标志
+     * @param frames
+     * @param seq
+     * @param chunks 大消息的分片数
+     * @return 是否完整
+     */
+    private static boolean complete(List<Frame> frames, long seq, int chunks) {
+        int next = 0;
+        for (Frame frame : frames) {
+            if (frame.getType() != Frame.CHUNK || frame.getSeq() != seq) {
+                continue;
+            }
+            int index = ByteBuffer.wrap(frame.getPayload()).getInt();
+            if (index != next || frame.isLast() != (index == chunks - 1)) {
+                System.out.println("重发的大消息里第" + next + "个分片之后收到了" + index);
+                return false;
+            }
+            next++;
+        }
+        if (next != chunks) {
+            System.out.println("重发的大消息只有" + next + "个分片");
+        }
+        return next == chunks;
+    }
+
+    // 收到的帧里是否有服务器回答[from, to]没有消息的帧
+    private static boolean answered(List<Frame> frames, long from, long to) {
+        for (Frame frame : frames) {
+            if (frame.getType() == Frame.MISSING && frame.getSeq() == from
+                    && new String(frame.getPayload(), StandardCharsets.UTF_8).equals(String.valueOf(to))) {
+                return true;
+            }
+        }
+        System.out.println("服务器没有回答序号" + from + "到" + to + "已经过期");
+        return false;
+    }
+
+    // 收到的第一条聊天室消息的序号
+    private static long firstText(List<Frame> frames) {
+        for (Frame frame : frames) {
+            if (frame.getType() == Frame.TEXT && frame.getSeq() > 0) {
+                return frame.getSeq();
+            }
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dataDir = Files.createTempDirectory("chat-sequence").toFile();
+        MessageStore history = new MessageStore(dataDir, 4096, 1);
+        for (long seq = 1; seq <= HISTORY; seq++) {
+            byte[] payload = ("history " + seq).getBytes(StandardCharsets.UTF_8);
+            if (history.append(Frame.encode(Frame.TEXT, (byte) 0, seq, payload))) {
+                history.retain(Long.MAX_VALUE);
+            }
+        }
+        long first = history.firstSeq();
+        history.close();
+        ChatServer server = new ChatServer(PORT, dataDir);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        RawClient alice = new RawClient("alice");
+        RawClient bob = new RawClient("bob");
+        RawClient carol = new RawClient("carol");
+        // 两个人轮流发言，第三个人只看。等旁观者收到上一条再发下一条，保证服务器按轮流的顺序处理
+        List<Frame> watched = new ArrayList<>();
+        for (int i = 0; i < ROUNDS; i++) {
+            (i % 2 == 0 ? alice : bob).send("message " + i);
+            carol.await(watched);
+        }
+        // alice发大消息的中途bob插了一句话
+        alice.chunk(Frame.FIRST, "111");
+        carol.drain(watched);
+        bob.send("between");
+        carol.drain(watched);
+        alice.chunk((byte) 0, "222");
+        alice.chunk(Frame.LAST, "333");
+        int gaps = gaps(carol, carol.drain(watched));
+        long stream = 0;
+        for (Frame frame : watched) {
+            if (frame.getType() == Frame.CHUNK && frame.isFirst()) {
+                stream = frame.getSeq();
+            }
+        }
+        carol.resend(stream, stream);
+        boolean complete = complete(carol.drain(new ArrayList<>()), stream, 3);
+        for (RawClient client : new RawClient[]{alice, bob}) {
+            gaps += gaps(client, client.drain(new ArrayList<>()));
+        }
+        // dave上次只收到了第10条，之后的一部分已经过期。补发还没结束时又请求重发过期的[5, 20]
+        RawClient dave = new RawClient("dave", 10);
+        dave.resend(5, 20);
+        List<Frame> resumed = dave.drain(new ArrayList<>());
+        boolean expired = answered(resumed, 11, first - 1) && answered(resumed, 5, 20);
+        if (firstText(resumed) != first) {
+            System.out.println("重连后补发的第一条消息是" + firstText(resumed) + "，还能补发的第一条是" + first);
+            expired = false;
+        }
+        for (RawClient client : new RawClient[]{alice, bob, carol, dave}) {
+            client.close();
+        }
+        server.drain(5, TimeUnit.SECONDS);
+        System.out.println(ROUNDS + "条消息，缺口数：" + gaps);
+        if (gaps > 0) {
+            System.out.println("发送消息后出现了缺口，客户端会请求重发");
+            System.exit(1);
+        }
+        if (!complete) {
+            System.out.println("重发大消息时没有发完所有分片");
+            System.exit(1);
+        }
+        System.out.println("重发大消息时发完了所有分片");
+        if (!expired) {
+            System.out.println("客户端会一直等已经过期的消息");
+            System.exit(1);
+        }
+        System.out.println("序号" + first + "之前的消息已经过期，重连和重发时服务器都明确回答了没有");
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,143 @@
+package demo;
+
+import protocol.Frame;
+import server.ChatServer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @FileName: SlowReaderDemo.java
+ * @Description: 检查一个从来不读的客户端不会拖住服务器：它的接收缓冲区很小，服务器写不下的帧要进它自己的发送队列，
+ *               其他客户端照常实时收到所有消息，积压超过上限后这个客户端被断开。有问题时以非0状态退出
+ * @Author: camille
+ * @Date: 2020/12/13 16:20
+ */
+public class SlowReaderDemo {
+
+    private static final int PORT = 9996;
+    private static final int MESSAGES = 20000;
+    private static final int SIZE = 900;
+    // 正常的接收者要在这么长时间内收完所有消息
+    private static final long DEADLINE = 10000;
+
+    private static Socket connect(String user, int receiveBuffer) throws IOException {
+        Socket socket = new Socket();
+        if (receiveBuffer > 0) {
+            // 连接之前设置，窗口才会按这个大小协商
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+        write(socket.getOutputStream(), Frame.encode(Frame.HELLO, (byte) 0,
+                ("\n" + user + "\n0").getBytes(StandardCharsets.UTF_8)));
+        return socket;
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        out.write(bytes);
+    }
+
+    // 一直读到收完所有聊天室消息或者超时，返回收到的条数
+    private static int receiveAll(Socket socket) throws IOException {
+        socket.setSoTimeout((int) DEADLINE);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        long deadline = System.currentTimeMillis() + DEADLINE;
+        int received = 0;
+        while (received < MESSAGES && System.currentTimeMillis() < deadline) {
+            int length = in.readInt();
+            byte type = in.readByte();
+            in.readByte(); // 标志位
+            long seq = in.readLong();
+            in.skipBytes(length);
+            if (type == Frame.TEXT && seq > 0) {
+                received++;
+            }
+        }
+        return received;
+    }
+
+    // 对端已经关闭时写会失败
+    private static boolean closedByServer(Socket socket) {
+        try {
+            for (int i = 0; i < 3; i++) {
+                write(socket.getOutputStream(), Frame.encode(Frame.ACK, (byte) 0, 0, new byte[0]));
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ChatServer server = new ChatServer(PORT, Files.createTempDirectory("chat-slow").toFile());
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        Socket slow = connect("slow", 4096);
+        Socket reader = connect("reader", 0);
+        Socket sender = connect("sender", 0);
+        TimeUnit.MILLISECONDS.sleep(200);
+        int[] received = new int[1];
+        Thread receiver = new Thread(() -> {
+            try {
+                received[0] = receiveAll(reader);
+            } catch (IOException e) {
+                System.out.println("接收者读取失败：" + e.getMessage());
+            }
+        });
+        receiver.start();
+
+        long begin = System.nanoTime();
+        // 服务器被拖住时发送者会一直阻塞，放在后台线程里，检查结果只看接收者
+        Thread writer = new Thread(() -> {
+            byte[] payload = new byte[SIZE];
+            Arrays.fill(payload, (byte) 'x');
+            try {
+                OutputStream out = sender.getOutputStream();
+                for (int i = 0; i < MESSAGES; i++) {
+                    write(out, Frame.encode(Frame.TEXT, (byte) 0, payload));
+                }
+            } catch (IOException e) {
+                System.out.println("发送者写入失败：" + e.getMessage());
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        receiver.join();
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        boolean dropped = closedByServer(slow);
+        for (Socket socket : new Socket[]{slow, reader, sender}) {
+            socket.close();
+        }
+        server.drain(5, TimeUnit.SECONDS);
+
+        System.out.println("正常的接收者" + elapsed + "毫秒内收到" + received[0] + "/" + MESSAGES + "条消息");
+        int code = 0;
+        if (received[0] < MESSAGES) {
+            System.out.println("一个不读的客户端拖住了服务器");
+            code = 1;
+        }
+        if (!dropped) {
+            System.out.println("积压超过上限的客户端没有被断开");
+            code = 1;
+        }
+        System.exit(code);
+    }
+
+}
@@ -0,0 +1,82 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @FileName: DeflateCodec.java
+ * @Description: 基于Deflate和预置字典的消息压缩，只对超过阈值的消息生效
+ * @Author: camille
+ * @Date: 2020/11/26 20:40
+ */
+public class DeflateCodec {
+
+    // 握手时使用的算法名称
+    public static final String NAME = "deflate";
+    // 小于该长度的消息压缩收益不大，直接明文发送
+    public static final int THRESHOLD = 256;
+
+    // 预置字典：聊天内容中常见的片段，双方必须完全一致
+    private static final byte[] DICTIONARY = (
+            "quit 的 了 是 我 你 他 们 这 那 不 在 有 吗 吧 啊 好的 谢谢 一下 什么 没有 可以 现在 "
+                    + "http:// https:// www. .com .cn .html "
+                    + "Exception at java. null true false return public private static void class "
+                    + "import package new String int long this if else for while { } ( ) ; "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] chunk = new byte[4096];
+
+    public synchronized byte[] compress(byte[] data) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解压消息，解压后的长度超过limit时抛出异常，防止恶意构造的数据撑爆内存
+     * @param data
+     * @param limit
+     * @return
+     * @throws IOException
+     */
+    public synchronized byte[] decompress(byte[] data, int limit) throws IOException {
+        inflater.reset();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                        continue;
+                    }
+                    if (inflater.needsInput()) {
+                        throw new IOException("压缩数据不完整");
+                    }
+                }
+                out.write(chunk, 0, n);
+                if (out.size() > limit) {
+                    throw new IOException("解压后的消息过长");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,124 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @FileName: Frame.java
+ * @Description: 客户端和服务器之间传输的消息帧，帧头为4字节负载长度 + 1字节类型 + 1字节标志位 + 8字节序号
+ * @Author: camille
+ * @Date: 2020/11/26 20:12
+ */
+public class Frame {
+
+    public static final int HEADER = 14;
+    // 一个帧的最大长度，接收端的缓冲区至少要能放下一个完整的帧
+    public static final int MAX_FRAME = 64 * 1024;
+    public static final int MAX_PAYLOAD = MAX_FRAME - HEADER;
+    // 文本消息的最大长度，预留一部分给服务器转发时附加的发送者名称
+    public static final int MAX_TEXT = MAX_PAYLOAD - 256;
+    // 超过这个长度的消息拆成多个分片发送，服务器收到一片转发一片，不在内存里拼出整条消息
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    // 帧类型
+    public static final byte HELLO = 1; // 建立连接后协商压缩算法
+    public static final byte TEXT = 2;  // 聊天消息
+    public static final byte RECONNECT = 3; // 服务器即将重启，负载为建议客户端等待多少毫秒后重连
+    public static final byte ACK = 4;       // 客户端确认已连续收到序号不超过seq的消息；服务器发给发送者时，seq是它的消息分到的序号
+    public static final byte RESEND = 5;    // 客户端发现缺了消息，请求重发序号从seq到负载中的序号
+    public static final byte CHUNK = 6;     // 大消息的一个分片，同一条消息的所有分片序号相同。服务器转发时负载开头加上4字节分片编号
+    public static final byte MISSING = 7;   // 回答重发请求：服务器没有序号从seq到负载中的序号的消息（已经过期，或者没有写进日志），客户端不用再等
+
+    // 标志位
+    public static final byte COMPRESSED = 1; // 负载经过压缩
+    public static final byte FIRST = 2;      // 大消息的第一个分片
+    public static final byte LAST = 4;       // 大消息的最后一个分片
+
+    private final byte type;
+    private final byte flags;
+    // 聊天室消息在服务器入口分配的序号，从1开始单调递增，0表示不参与排序的消息（握手、私聊等）
+    private final long seq;
+    private final byte[] payload;
+
+    public Frame(byte type, byte flags, long seq, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.seq = seq;
+        this.payload = payload;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    public boolean isFirst() {
+        return (flags & FIRST) != 0;
+    }
+
+    public boolean isLast() {
+        return (flags & LAST) != 0;
+    }
+
+    // 不参与排序的帧，序号为0
+    public static ByteBuffer encode(byte type, byte flags, byte[] payload) {
+        return encode(type, flags, 0, payload);
+    }
+
+    /**
+     * 把一个帧编码到新的buffer中，返回的buffer已经是读模式
+     * @param type
+     * @param flags
+     * @param seq
+     * @param payload
+     * @return
+     */
+    public static ByteBuffer encode(byte type, byte flags, long seq, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + payload.length);
+        buffer.putInt(payload.length).put(type).put(flags).putLong(seq).put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 从读模式的buffer中解析出一个帧，数据不完整时返回null并且不移动position
+     * @param buffer
+     * @return
+     * @throws IOException 帧长度非法
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("帧长度非法：" + length);
+        }
+        if (buffer.remaining() < HEADER + length) {
+            return null;
+        }
+        buffer.getInt();
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        long seq = buffer.getLong();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return new Frame(type, flags, seq, payload);
+    }
+
+}
@@ -1,13 +1,20 @@
 package server;
 
+import protocol.DeflateCodec;
+import protocol.Frame;
+
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @FileName: ChatServer.java
@@ -19,24 +26,61 @@ public class ChatServer {
 
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    // 私聊消息的前缀，格式为 @用户名 消息
+    private static final String PRIVATE = "@";
+    // 目前只有一个聊天室
+    private static final String DEFAULT_ROOM = "lobby";
+    private static final String DEFAULT_DATA_DIR = "chat-data";
+    // 用户名最大长度
+    private static final int MAX_USER = 32;
+    // 补发离线消息时每次最多传输的字节数，通道写不下时等下一次write事件
+    private static final long CATCH_UP_BATCH = 256 * 1024;
+    // 每个连接的发送队列最多积压的字节数，超过说明对方长时间不读，断开它，不让它占着内存
+    private static final long MAX_OUTBOUND = 1024 * 1024;
+    // 补发期间每个连接最多暂存的字节数，超过后改为从日志补发
+    private static final long MAX_DEFERRED = 1024 * 1024;
+    // 停机时让客户端在这个时间窗口内随机选一个时刻重连，避免新进程启动后被同时涌入的连接打满
+    private static final int DRAIN_WINDOW = 5000;
+    // 关闭钩子等待排空完成的最长时间
+    private static final long DRAIN_TIMEOUT = 10;
+    // -Dchat.footprint=true 时定期打印内存占用，用于测量空闲连接的开销
+    private static final boolean FOOTPRINT = Boolean.getBoolean("chat.footprint");
+    private static final long FOOTPRINT_INTERVAL = 1000;
 
     // 对应BIO的实现 serverSocket
     private ServerSocketChannel server; // 处理服务器的IO通道
     // 伪异步的线程池 -> selector
     private Selector selector;
-    // 通道的写入读出需要buffer.
-    // 从通道里读取消息，写入buffer
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    // 转发给其他用户，写入其他客户端的socketChannel
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
     // 解决乱码问题
     private Charset charset = StandardCharsets.UTF_8;
+    // 所有连接共用的读缓冲区，只有selector一个线程在用
+    private ByteBuffer rBuffer = ByteBuffer.allocate(Frame.MAX_FRAME);
+    // 只有selector一个线程在用，压缩器可以复用。第一次需要压缩时才创建，加快启动
+    private DeflateCodec codec;
+    // 消息日志和用户游标
+    private MessageStore store;
+    // 用户名 -> 连接，私聊时直接找到接收者，不用遍历所有连接
+    private Map<String, SelectionKey> users = new HashMap<>();
+    // 消息进入服务器时分配序号，之后无论怎样投递，客户端都能按序号排序和去重
+    private Sequencer sequencer = new Sequencer();
+    // 连接、断开这类高频日志交给后台线程批量输出，不在selector线程上写控制台
+    private EventLog eventLog = new EventLog();
     private int port; // 用户自定义的端口
+    // 消息日志和游标所在的目录，默认在工作目录下
+    private File dataDir;
+    // 其他线程请求停机，selector线程看到后开始排空
+    private volatile boolean draining;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private Random random = new Random();
 
-    // 根据用户自定义的端口创建服务器
-    public ChatServer(int port) {
+    // 根据用户自定义的端口和数据目录创建服务器
+    public ChatServer(int port, File dataDir) {
         this.port = port;
+        this.dataDir = dataDir;
+    }
+
+    public ChatServer(int port) {
+        this(port, new File(DEFAULT_DATA_DIR));
     }
 
     // 复用上面的方法
@@ -44,10 +88,15 @@ public class ChatServer {
         this(DEFAULT_PORT);
     }
 
-    private void start() {
+    public void start() {
+        long begin = System.nanoTime();
         try {
+            store = new MessageStore(dataDir);
+            sequencer.seed(DEFAULT_ROOM, store.lastSeq());
             server = ServerSocketChannel.open(); // 创建一个serverSocket通道，默认为阻塞式调用模式
             server.configureBlocking(false); // 配置取消阻塞状态
+            // 重启时旧连接还处于TIME_WAIT，允许新进程立即绑定同一个端口
+            server.socket().setReuseAddress(true);
             // 通道关联的serverSocket绑定到监听端口
             server.socket().bind(new InetSocketAddress(port));
 
@@ -55,29 +104,132 @@ public class ChatServer {
             // selector开始监听serverSocketChannel的accept状态
             // 一旦服务器通道接受了新的客户端的连接请求时，selector会返回相关信息（放在selectionKey）
             server.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，监听端口：" + port);
+            System.out.println("启动服务器，监听端口：" + port
+                    + "，耗时" + (System.nanoTime() - begin) / 1000000 + "毫秒");
+            int reported = -1;
+            long reportedAt = 0;
 
             // select函数是阻塞的，如果没有selector监听的事件发生，会一直阻塞。一旦发生了事件，就会返回
-            while (true) {
-                selector.select(); // 返回被触发事件的个数，会不停的被调用，一直监听
+            while (!draining) {
+                if (FOOTPRINT && System.currentTimeMillis() - reportedAt >= FOOTPRINT_INTERVAL) {
+                    // 连接数有变化时才统计，统计前会触发GC，所以最多每秒一次
+                    int connections = selector.keys().size() - 1;
+                    if (connections != reported) {
+                        System.out.println(Footprint.report(connections));
+                        reported = connections;
+                    }
+                    reportedAt = System.currentTimeMillis();
+                }
+                selector.select(FOOTPRINT ? FOOTPRINT_INTERVAL : 0); // 返回被触发事件的个数，会不停的被调用，一直监听
                 // 有事件发生了，监听到的被触发的事件：信息被包装到selectionKey中
                 Set<SelectionKey> selectionKeys = selector.selectedKeys();
                 for (SelectionKey key : selectionKeys) {
-                    // 对每一个被触发的事件，处理它
-                    handles(key);
+                    // 同一批事件里，前面转发消息失败时可能已经断开了后面的连接
+                    if (key.isValid()) {
+                        // 对每一个被触发的事件，处理它
+                        handles(key);
+                    }
                 }
                 // 把处理过的keys手动清空。
                 // 如果不清空，会将新发生的事件加到selectionKeys集合里面，又重复执行一遍
                 selectionKeys.clear();
             }
-
-
+            drainClients();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             // 实际中，会自动把在selector上注册的事件和连接的通道关闭
             close(selector);
+            close(store);
+            eventLog.flush();
+            drained.countDown();
+        }
+    }
+
+    /**
+     * 请求服务器停机并等待排空完成，可以在任意线程调用
+     * @param timeout
+     * @param unit
+     * @return 超时返回false
+     * @throws InterruptedException
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        draining = true;
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
         }
+        return drained.await(timeout, unit);
+    }
+
+    /**
+     * 排空：先停止accept，再把每个客户端发送队列里的帧、没发完的补发数据写到帧边界、暂存的私聊写出去，
+     * 最后通知客户端在DRAIN_WINDOW内随机等待一段时间后重连，并保存游标。
+     * 写缓冲区已满的客户端直接跳过，不等它，后面的客户端照常通知
+     * @throws IOException
+     */
+    private void drainClients() throws IOException {
+        // 停止接收新连接，释放端口给新进程
+        server.keyFor(selector).cancel();
+        close(server);
+        eventLog.flush();
+        System.out.println("服务器停止接收新连接，开始排空");
+        int count = 0;
+        int skipped = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.channel() instanceof SocketChannel)) {
+                continue;
+            }
+            SocketChannel client = (SocketChannel) key.channel();
+            Session session = (Session) key.attachment();
+            try {
+                // 发送队列里的帧排在补发数据前面
+                boolean flushed = session == null || session.flush(client);
+                if (flushed && session != null && session.isCatchingUp()) {
+                    // 补发可能停在半个帧上，先补完这个帧，后面的部分等重连后继续
+                    long boundary = store.nextBoundary(session.getCatchUpFrom(), session.getCatchUp());
+                    long position = session.getCatchUp();
+                    long sent;
+                    while (position < boundary && (sent = store.transfer(position, boundary - position, client)) > 0) {
+                        position += sent;
+                    }
+                    // 没写完时游标退回到最后一个完整的帧，重连后从那里补发
+                    session.setCatchUp(position);
+                    flushed = position >= boundary;
+                    if (flushed) {
+                        session.setCatchUpFrom(boundary);
+                    }
+                }
+                if (session != null && flushed) {
+                    // 暂存的私聊不在日志里，现在不发就丢了
+                    for (ByteBuffer frame : session.takeDeferred()) {
+                        if (!(flushed = writeNow(client, frame))) {
+                            break;
+                        }
+                    }
+                }
+                String delay = String.valueOf(random.nextInt(DRAIN_WINDOW));
+                if (flushed && writeNow(client, Frame.encode(Frame.RECONNECT, (byte) 0, delay.getBytes(charset)))) {
+                    count++;
+                } else {
+                    skipped++;
+                }
+            } catch (IOException e) {
+                // 客户端已经断开了，直接保存游标
+            }
+            disconnect(key);
+        }
+        System.out.println("排空完成，通知" + count + "个客户端重连，" + skipped + "个客户端写缓冲区已满被跳过");
+    }
+
+    // 不等待地写，通道写满时返回false，排空时一个卡住的客户端不会拖住其他客户端
+    private boolean writeNow(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void handles(SelectionKey key) throws IOException {
@@ -88,67 +240,511 @@ public class ChatServer {
             // 是accept事件
             ServerSocketChannel server = (ServerSocketChannel) key.channel();
             SocketChannel client = server.accept();
+            if (client == null) {
+                return;
+            }
             client.configureBlocking(false); // 默认阻塞调用模式，改为非阻塞模式调用
-            client.register(selector, SelectionKey.OP_READ); // 注册一个read事件到selector
-            System.out.println("客户端" + client.socket().getPort() + "已连接");
-        } else if (key.isReadable()) {
-            // read事件，客户端发送了消息给服务端
-            // 从客户端读消息，转发到其他客户端中
+            // 注册一个read事件到selector，连接的状态挂在key上
+            // 连接的状态等第一次收到数据时再创建，空闲连接只占用通道本身
+            client.register(selector, SelectionKey.OP_READ);
+            eventLog.record(EventLog.CONNECTED, client.socket().getPort());
+        } else {
             SocketChannel client = (SocketChannel) key.channel();
-            String fwdMsg = receive(client); // 从通道中获取消息
-            // 转发消息，如果消息为空，就不转发
-            if (fwdMsg.isEmpty()) {
-                // 客户端出现异常，不再监听客户端上的事件
-                key.cancel(); // 取消key对应的通道和事件
-                // 如果当前有selector的被阻塞的方法，那么我们更新了监听的事件状态，
-                // 让selector将当前被阻塞的状态重新返回，在多线程中有更大的意义
-                selector.wakeup();
-            } else {
-                // 通过selector获得连接的客户端
-                forwardMessage(client, fwdMsg);
+            try {
+                if (key.isReadable()) {
+                    // read事件，客户端发送了消息给服务端
+                    // 从客户端读消息，转发到其他客户端中
+                    receive(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    // write事件，通道又可以写了：先写发送队列里积压的帧，写完了再继续补发离线消息
+                    Session session = (Session) key.attachment();
+                    if (session == null || session.flush(client)) {
+                        if (session != null && session.isCatchingUp()) {
+                            catchUp(key);
+                        } else {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // 连接被重置或者帧格式错误，只断开这一个客户端，服务器继续运行
+                eventLog.record(EventLog.ERROR, client.socket().getPort(), e.getMessage(), null);
+                disconnect(key);
+            }
+        }
+    }
+
+    private void receive(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        if (session == null) {
+            session = new Session();
+            key.attach(session);
+        }
+        boolean open = session.read(client, rBuffer);
+        // 一次读到的数据里可能有多个帧，也可能只有半个。对端关闭之前发来的帧（比如退出前的ACK）也要处理
+        Frame frame;
+        while (key.isValid() && (frame = Frame.decode(rBuffer)) != null) {
+            handleFrame(key, frame);
+        }
+        if (!open) {
+            // 客户端关闭了连接，不再监听客户端上的事件
+            disconnect(key);
+            return;
+        }
+        if (key.isValid()) {
+            session.keepPending(rBuffer);
+        }
+    }
+
+    /**
+     * 从用户的游标处把日志成批地直接传输给客户端，受通道的发送缓冲区限制，
+     * 写不下时保留OP_WRITE，等下一次write事件再继续。发送队列写空之后才会调用，补发的数据不会插到积压的帧中间。
+     * 追上日志末尾后切换为实时转发。
+     * 日志里是明文帧，补发不按连接协商的deflate压缩：换来零拷贝，不在selector线程上解压再压缩，
+     * 代价是补发的流量比实时转发大
+     * @param key
+     * @throws IOException
+     */
+    private void catchUp(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        long position = session.getCatchUp();
+        // 补缺口时只发到缺口结束，否则一直发到日志末尾
+        long end = session.getCatchUpEnd() >= 0 ? session.getCatchUpEnd() : store.end();
+        long sent;
+        while (position < end
+                && (sent = store.transfer(position, Math.min(CATCH_UP_BATCH, end - position), client)) > 0) {
+            position += sent;
+        }
+        session.setCatchUp(position);
+        if (position >= end) {
+            session.setCatchUp(-1);
+            session.setCatchUpEnd(-1);
+            key.interestOps(SelectionKey.OP_READ);
+            // 补发期间暂存的消息不在这次补发的范围里，补完之后按顺序再发
+            for (ByteBuffer buffer : session.takeDeferred()) {
+                send(key, buffer);
+            }
+            // 补发期间排队的重发请求
+            long[] next;
+            while (!session.isCatchingUp() && (next = session.takeResend()) != null) {
+                resend(key, next[0], next[1]);
+            }
+        }
+    }
+
+    /**
+     * 重发序号从from到to的消息：日志里没有的序号先明确告诉客户端不用再等，其余的从日志补发，
+     * 不能让客户端一直等一条不会再来的消息
+     * @param key
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    private void resend(SelectionKey key, long from, long to) throws IOException {
+        Session session = (Session) key.attachment();
+        for (long[] missing : store.missing(from, to)) {
+            send(key, Frame.encode(Frame.MISSING, (byte) 0, missing[0],
+                    String.valueOf(missing[1]).getBytes(charset)));
+        }
+        long start = store.offset(from);
+        // 缺口里的大消息要一直发到最后一个分片
+        long end = store.resendEnd(from, to);
+        if (start < end) {
+            session.setCatchUp(start);
+            session.setCatchUpFrom(start);
+            session.setCatchUpEnd(end);
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void handleFrame(SelectionKey key, Frame frame) throws IOException {
+        Session session = (Session) key.attachment();
+        switch (frame.getType()) {
+            case Frame.HELLO:
+                // 第一行是客户端支持的压缩算法，第二行是用户名，服务器回复最终选用的算法
+                String[] hello = new String(frame.getPayload(), charset).split("\n", -1);
+                boolean deflate = hello[0].contains(DeflateCodec.NAME);
+                session.setDeflate(deflate);
+                send(key, Frame.encode(Frame.HELLO, (byte) 0,
+                        (deflate ? DeflateCodec.NAME : "").getBytes(charset)));
+                String user = hello.length > 1 ? hello[1].trim() : "";
+                if (isValidUser(user) && session.getUser() == null) {
+                    // 和BIO服务器一样，用户名已经有连接在用时拒绝后登录的连接，
+                    // 否则任何人都能顶掉别人的连接并接管别人的游标。客户端会按退避策略重连，旧连接断开后就能登录
+                    if (users.containsKey(user)) {
+                        deliver(key, Frame.encode(Frame.TEXT, (byte) 0, ("用户名" + user + "已被占用").getBytes(charset)));
+                        disconnect(key);
+                        break;
+                    }
+                    users.put(user, key);
+                    // 客户端带上了已经收到的最大序号，只补发它之后的消息，否则从上次保存的游标开始补发
+                    session.setUser(user);
+                    long resume = hello.length > 2 ? parseSeq(hello[2]) : 0;
+                    long cursor = store.cursor(user);
+                    if (resume > 0) {
+                        // 它收到的最后一条之后有消息已经过期，直接告诉它从哪里开始，不用再请求重发
+                        long first = store.firstSeq();
+                        if (resume + 1 < first) {
+                            send(key, Frame.encode(Frame.MISSING, (byte) 0, resume + 1,
+                                    String.valueOf(first - 1).getBytes(charset)));
+                        }
+                        cursor = store.offset(resume + 1);
+                    }
+                    session.setCatchUp(cursor);
+                    session.setCatchUpFrom(cursor);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                break;
+            case Frame.TEXT:
+                String fwdMsg = decodeText(frame);
+                // 转发消息，如果消息为空，就不转发
+                if (fwdMsg.isEmpty()) {
+                    break;
+                }
+                if (fwdMsg.startsWith(PRIVATE)) {
+                    // 私聊只写给接收者一个连接
+                    sendPrivate(key, fwdMsg);
+                } else {
+                    // 通过selector获得连接的客户端
+                    forwardMessage(key, fwdMsg);
+                }
                 // 检查用户是否退出
                 if (readyToQuit(fwdMsg)) {
-                    key.cancel();
-                    selector.wakeup();
-                    System.out.println("客户端" + client.socket().getPort() + "断开连接");
+                    disconnect(key);
+                }
+                break;
+            case Frame.CHUNK:
+                streamChunk(key, frame);
+                break;
+            case Frame.ACK:
+                // 客户端确认收到的位置就是下次补发的起点
+                session.setAcked(frame.getSeq());
+                if (session.getUser() != null) {
+                    store.saveCursor(session.getUser(), store.offset(frame.getSeq() + 1));
                 }
+                break;
+            case Frame.RESEND:
+                // 只重发缺口[seq, to]。正在补发时不能插入别的数据，排队等这次补发结束，不能丢掉
+                long to = parseSeq(new String(frame.getPayload(), charset));
+                if (session.isCatchingUp()) {
+                    session.queueResend(frame.getSeq(), to);
+                } else {
+                    resend(key, frame.getSeq(), to);
+                }
+                break;
+            default:
+                throw new IOException("未知的帧类型：" + frame.getType());
+        }
+    }
+
+    private String decodeText(Frame frame) throws IOException {
+        byte[] payload = frame.getPayload();
+        if (frame.isCompressed()) {
+            payload = codec().decompress(payload, Frame.MAX_TEXT);
+        }
+        return new String(payload, charset);
+    }
+
+    private void forwardMessage(SelectionKey sender, String fwdMsg) throws IOException {
+        // 确保不会乱码
+        byte[] bytes = (getClientName(sender) + ":" + fwdMsg).getBytes(charset);
+        // 入口处分配序号，日志、实时转发和补发都带着同一个序号
+        broadcast(sender, Frame.TEXT, (byte) 0, sequencer.next(DEFAULT_ROOM), bytes);
+    }
+
+    /**
+     * 大消息的一个分片：收到一片就转发一片（直通转发），服务器只记住这条消息的序号，
+     * 不拼接整条消息，每条在途大消息占用的内存不超过一个分片
+     * @param key
+     * @param frame
+     * @throws IOException
+     */
+    private void streamChunk(SelectionKey key, Frame frame) throws IOException {
+        Session session = (Session) key.attachment();
+        byte[] bytes = frame.getPayload();
+        if (frame.isCompressed()) {
+            bytes = codec().decompress(bytes, Frame.MAX_TEXT);
+        }
+        long seq = session.getStreamSeq();
+        if (frame.isFirst()) {
+            if (seq != 0) {
+                throw new IOException("上一条大消息还没有发送完");
+            }
+            // 第一个分片分配序号，并在开头加上发送者名称
+            seq = sequencer.next(DEFAULT_ROOM);
+            session.setStreamSeq(seq);
+            byte[] name = (getClientName(key) + ":").getBytes(charset);
+            byte[] first = new byte[name.length + bytes.length];
+            System.arraycopy(name, 0, first, 0, name.length);
+            System.arraycopy(bytes, 0, first, name.length, bytes.length);
+            bytes = first;
+        } else if (seq == 0) {
+            throw new IOException("收到了没有开头的分片");
+        }
+        byte flags = (byte) (frame.getFlags() & (Frame.FIRST | Frame.LAST));
+        broadcast(key, Frame.CHUNK, flags, seq, numbered(session.nextStreamIndex(), bytes));
+        if (frame.isLast()) {
+            session.setStreamSeq(0);
+        }
+    }
+
+    // 日志换段之后删除不再需要的旧段，正在补发的连接要读的段都保留
+    private void retain() {
+        long pinned = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            Session session = (Session) key.attachment();
+            if (session != null && session.isCatchingUp()) {
+                pinned = Math.min(pinned, session.getCatchUpFrom());
             }
         }
+        try {
+            store.retain(pinned);
+        } catch (IOException e) {
+            // 清理旧段失败不影响转发，下次换段时再清理
+            e.printStackTrace();
+        }
+    }
+
+    // 转发的分片开头加上4字节的分片编号
+    private byte[] numbered(int index, byte[] bytes) {
+        return ByteBuffer.allocate(4 + bytes.length).putInt(index).put(bytes).array();
+    }
+
+    // 发送者在大消息发完之前断开，补一个结束分片，接收者不会一直等下去
+    private void abortStream(SelectionKey key, Session session) {
+        if (session == null || session.getStreamSeq() == 0) {
+            return;
+        }
+        try {
+            broadcast(key, Frame.CHUNK, Frame.LAST, session.getStreamSeq(),
+                    numbered(session.nextStreamIndex(), "\n[发送者已断开，消息不完整]".getBytes(charset)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        session.setStreamSeq(0);
     }
 
-    private void forwardMessage(SocketChannel client, String fwdMsg) throws IOException {
+    /**
+     * 写日志并转发给除发送者以外的所有客户端，发送者只收到这条消息分到的序号
+     * @param sender
+     * @param type
+     * @param flags
+     * @param seq
+     * @param bytes 未压缩的负载
+     * @throws IOException
+     */
+    private void broadcast(SelectionKey sender, byte type, byte flags, long seq, byte[] bytes) throws IOException {
+        // 同一条消息只编码、压缩一次，所有接收者共享同一份字节
+        ByteBuffer plain = Frame.encode(type, flags, seq, bytes);
+        ByteBuffer packed = null;
+        // 发送者不显示自己的消息，但要知道它的序号，否则下一条别人的消息看起来像缺口。
+        // 大消息在第一个分片分配序号时通知
+        ByteBuffer own = type == Frame.TEXT || (flags & Frame.FIRST) != 0
+                ? Frame.encode(Frame.ACK, (byte) 0, seq, new byte[0]) : null;
+        // 先写日志，离线和正在补发的用户之后从日志里拿到这条消息
+        if (store.append(plain)) {
+            retain();
+        }
+        boolean compressible = bytes.length >= DeflateCodec.THRESHOLD;
         // 所有注册的key
         for (SelectionKey key : selector.keys()) {
            // 排除serverSocketChannel的事件
-           if (key.channel() instanceof ServerSocketChannel) {
+           if (key.channel() instanceof ServerSocketChannel || !key.isValid()) {
                continue;
            }
-           // 不是发送消息的客户端
-           if (key.isValid() && !client.equals(key.channel())) {
-               // 将数据写入到wBuffer
-               wBuffer.clear();
-               // 确保不会乱码
-               wBuffer.put(charset.encode(getClientName(client) + ":" + fwdMsg));
-               wBuffer.flip(); // 写模式转为读模式
-               while (wBuffer.hasRemaining()) {
-                   SocketChannel channel = (SocketChannel) key.channel();
-                   channel.write(wBuffer);
+           Session session = (Session) key.attachment();
+           ByteBuffer frame = plain;
+           if (key == sender) {
+               if (own == null) {
+                   continue;
                }
+               frame = own;
+           } else if (compressible && session != null && session.isDeflate()) {
+               if (packed == null) {
+                   packed = encode(type, flags, seq, bytes, true);
+               }
+               frame = packed;
            }
+           if (session != null && session.isCatchingUp()) {
+               // 补发到日志末尾时会带上这条消息；只补一个缺口时先暂存，补完再发，保证顺序
+               if (session.getCatchUpEnd() >= 0) {
+                   defer(key, session, frame.duplicate());
+               }
+               continue;
+           }
+           // duplicate出独立的position，底层字节不复制
+           deliver(key, frame.duplicate());
         }
 
 
     }
 
-    private String getClientName(SocketChannel client) {
-        return String.valueOf(client.socket().getPort());
+    /**
+     * 私聊：按用户名直接找到接收者的连接，只写这一个通道
+     * @param sender
+     * @param msg 以@开头的原始消息
+     * @throws IOException
+     */
+    private void sendPrivate(SelectionKey sender, String msg) throws IOException {
+        int split = msg.indexOf(' ');
+        String target = split < 0 ? msg.substring(PRIVATE.length()) : msg.substring(PRIVATE.length(), split);
+        String text = split < 0 ? "" : msg.substring(split + 1);
+        SelectionKey key = users.get(target);
+        if (key == null || !key.isValid()) {
+            deliver(sender, Frame.encode(Frame.TEXT, (byte) 0, ("用户" + target + "不在线").getBytes(charset)));
+            return;
+        }
+        Session session = (Session) key.attachment();
+        ByteBuffer frame = encode(Frame.TEXT, (byte) 0, 0,
+                (getClientName(sender) + "(私聊):" + text).getBytes(charset), session.isDeflate());
+        if (session.isCatchingUp()) {
+            // 正在补发，直接写会插到半个帧中间
+            defer(key, session, frame);
+        } else {
+            deliver(key, frame);
+        }
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        rBuffer.clear(); // 清空之前输入信息
-        while (client.read(rBuffer) > 0); // 直到读不出任何字节才退出
-        rBuffer.flip(); // 转为写模式
-        return  String.valueOf(charset.decode(rBuffer));
+    /**
+     * 正在补发的连接暂存一个帧。补缺口期间暂存超过MAX_DEFERRED时，改为一直补发到日志末尾，
+     * 暂存的聊天室消息丢掉，之后从日志里补发；不在日志里的私聊仍然超过上限时断开这个连接，重连后从游标补发
+     * @param key
+     * @param session
+     * @param frame
+     */
+    private void defer(SelectionKey key, Session session, ByteBuffer frame) {
+        if (session.defer(frame) <= MAX_DEFERRED) {
+            return;
+        }
+        if (session.getCatchUpEnd() >= 0) {
+            session.setCatchUpEnd(-1);
+            if (session.dropLogged() <= MAX_DEFERRED) {
+                return;
+            }
+        }
+        eventLog.record(EventLog.ERROR, ((SocketChannel) key.channel()).socket().getPort(),
+                "补发期间暂存超过" + MAX_DEFERRED + "字节", null);
+        disconnect(key);
+    }
+
+    private DeflateCodec codec() {
+        if (codec == null) {
+            codec = new DeflateCodec();
+        }
+        return codec;
+    }
+
+    // 编码一条消息，消息足够长、对方支持并且压缩后确实变小时才压缩
+    private ByteBuffer encode(byte type, byte flags, long seq, byte[] bytes, boolean deflate) {
+        if (deflate && bytes.length >= DeflateCodec.THRESHOLD) {
+            byte[] compressed = codec().compress(bytes);
+            // 压缩后反而变大（比如已经压缩过的内容），就退回明文
+            if (compressed.length < bytes.length) {
+                return Frame.encode(type, (byte) (flags | Frame.COMPRESSED), seq, compressed);
+            }
+        }
+        return Frame.encode(type, flags, seq, bytes);
+    }
+
+    // 写给某个接收者失败时只断开这个接收者，不影响发送者和其他接收者
+    private void deliver(SelectionKey key, ByteBuffer buffer) {
+        try {
+            send(key, buffer);
+        } catch (IOException e) {
+            eventLog.record(EventLog.ERROR, ((SocketChannel) key.channel()).socket().getPort(), e.getMessage(), null);
+            disconnect(key);
+        }
+    }
+
+    /**
+     * 不等待地写一个帧：通道写不下，或者前面还有积压的帧时，剩下的放进这个连接的发送队列，
+     * 保留OP_WRITE等通道可写时再写。selector线程不为任何一个读得慢的客户端停下来
+     * @param key
+     * @param buffer
+     * @throws IOException 写失败，或者发送队列超过MAX_OUTBOUND
+     */
+    private void send(SelectionKey key, ByteBuffer buffer) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        if (session == null || !session.hasOutbound()) {
+            while (buffer.hasRemaining() && client.write(buffer) > 0);
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+        }
+        if (session == null) {
+            // 还没发过数据的连接第一次写不下时才创建状态
+            session = new Session();
+            key.attach(session);
+        }
+        if (session.queue(buffer) > MAX_OUTBOUND) {
+            throw new IOException("发送队列超过" + MAX_OUTBOUND + "字节，客户端长时间没有读取");
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void disconnect(SelectionKey key) {
+        if (!key.isValid()) {
+            return; // 已经断开过了
+        }
+        Session session = (Session) key.attachment();
+        abortStream(key, session);
+        saveCursor(session);
+        eventLog.record(EventLog.DISCONNECTED, ((SocketChannel) key.channel()).socket().getPort());
+        if (session != null && session.getUser() != null && users.get(session.getUser()) == key) {
+            users.remove(session.getUser());
+        }
+        key.cancel(); // 取消key对应的通道和事件
+        close(key.channel());
+        // 如果当前有selector的被阻塞的方法，那么我们更新了监听的事件状态，
+        // 让selector将当前被阻塞的状态重新返回，在多线程中有更大的意义
+        selector.wakeup();
+    }
+
+    // 记录用户断开时已经收到的位置：还在补发就是补发到的位置，否则实时消息都已经写出，游标就是日志末尾
+    private void saveCursor(Session session) {
+        if (session == null || session.getUser() == null) {
+            return;
+        }
+        try {
+            // 客户端确认过的位置最可靠；没有确认过时，补发可能停在半个帧上，退回到最后一个完整的帧
+            long cursor;
+            if (session.getAcked() > 0) {
+                cursor = store.offset(session.getAcked() + 1);
+            } else if (session.isCatchingUp()) {
+                cursor = store.lastBoundary(session.getCatchUpFrom(), session.getCatchUp());
+            } else {
+                cursor = store.end();
+            }
+            store.saveCursor(session.getUser(), cursor);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 登录了的客户端用用户名，否则用端口号
+    private String getClientName(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        if (session != null && session.getUser() != null) {
+            return session.getUser();
+        }
+        return String.valueOf(((SocketChannel) key.channel()).socket().getPort());
+    }
+
+    private long parseSeq(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private boolean isValidUser(String user) {
+        return !user.isEmpty() && user.length() <= MAX_USER
+                && user.indexOf(' ') < 0 && !user.startsWith(PRIVATE);
     }
 
     private boolean readyToQuit(String msg) {
@@ -167,7 +763,15 @@ public class ChatServer {
 
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        ChatServer chatServer = args.length > 0 ? new ChatServer(Integer.parseInt(args[0])) : new ChatServer();
+        // 收到停机信号（kill或者Ctrl+C）时先排空，客户端错开时间重连，不会同时涌向新进程
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                chatServer.drain(DRAIN_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
         chatServer.start();
     }
 
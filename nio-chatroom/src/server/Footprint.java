@@ -0,0 +1,48 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * @FileName: Footprint.java
+ * @Description: 统计进程的内存占用：堆内存和常驻内存（RSS）
+ * @Author: camille
+ * @Date: 2020/12/01 20:30
+ */
+public class Footprint {
+
+    private static final File STATUS = new File("/proc/self/status");
+
+    // GC之后已使用的堆内存，单位KB
+    public static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+
+    // 常驻内存，单位KB，只有Linux能取到，其他系统返回-1
+    public static long rss() {
+        if (!STATUS.exists()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(STATUS))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    // 格式为 VmRSS:    123456 kB
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    public static String report(int connections) {
+        return "内存占用 连接数=" + connections + " 堆=" + heapUsed() + "KB RSS=" + rss() + "KB";
+    }
+
+}
@@ -0,0 +1,563 @@
+package server;
+
+import protocol.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @FileName: MessageStore.java
+ * @Description: 消息日志和每个用户的已读游标，用户重连后从游标处补发离线期间的消息
+ * @Author: camille
+ * @Date: 2020/11/28 19:30
+ */
+public class MessageStore implements Closeable {
+
+    // 消息日志：按到达顺序追加的帧，和发给客户端的字节完全一样，补发时可以直接transferTo。
+    // 日志分成多个段文件，文件名是段在整个日志中的起始偏移，游标和索引里的偏移都是整个日志中的偏移
+    private static final String SEGMENT_PREFIX = "messages-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // 旧版本只有一个日志文件，启动时改名为第一个段
+    private static final String LEGACY_LOG = "messages.log";
+    // 游标文件：每个用户一条记录 [2字节名称长度][名称][8字节日志偏移]，位置固定，更新时原地覆盖8个字节
+    private static final String CURSOR_FILE = "cursors.idx";
+    // 序号索引的检查点：[8字节覆盖到的日志位置][8字节最大序号][4字节条目数][所有序号][所有起始偏移][所有结束偏移]，
+    // 换段和关闭时写入，启动时整块读入索引，只扫描检查点之后追加的帧，不用每次从头扫描整个日志
+    private static final String CHECKPOINT_FILE = "index.ckpt";
+    private static final int CHECKPOINT_HEADER = 20;
+    // 当前段写到这么大之后换新段，旧段不再需要时整个删除
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    // 最多保留的段数，很久不上线的用户的游标也不能让日志无限增长
+    private static final int MAX_SEGMENTS = 16;
+
+    // 一个段文件，base是它的第一个字节在整个日志中的偏移
+    private static class Segment {
+        private final long base;
+        private final File file;
+        private final FileChannel channel;
+
+        private Segment(long base, File file) throws IOException {
+            this.base = base;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.position(channel.size());
+        }
+
+        // 段末尾在整个日志中的偏移
+        private long end() throws IOException {
+            return base + channel.position();
+        }
+    }
+
+    private File dir;
+    private long segmentSize;
+    private int maxSegments;
+    // 按起始偏移排序，最后一个是正在追加的段
+    private List<Segment> segments = new ArrayList<>();
+    private FileChannel cursors;
+    // 用户 -> 游标在游标文件中的位置
+    private Map<String, Long> slots = new HashMap<>();
+    private ByteBuffer cursorBuffer = ByteBuffer.allocate(8);
+    private ByteBuffer headerBuffer = ByteBuffer.allocate(4);
+    // 序号索引最多保留的条目数，满了之后丢掉最旧的一半。每个条目是三个long共24字节，常驻内存不超过6MB。
+    // 被丢掉的旧消息和已经删除的段一样算作过期：游标和补发都从索引里最早的消息开始，所在的段之后整个删除
+    private static final int INDEX_LIMIT = 1 << 18;
+
+    // 序号索引：序号为seqs[i]的消息从日志偏移offsets[i]开始，到ends[i]结束，按序号递增，启动时从检查点恢复。
+    // 序号不一定连续（分配了序号但写日志失败时会空出一个），按序号二分查找。
+    // 大消息的分片和其他消息交错写入，ends[i]是它最后一个分片的结束位置
+    private long[] seqs = new long[1024];
+    private long[] offsets = new long[1024];
+    private long[] ends = new long[1024];
+    private int count;
+    // 写入过的最大序号，旧段删除后索引可能为空，重启时序号仍然要接着往后排
+    private long lastSeq;
+
+    public MessageStore(File dir) throws IOException {
+        this(dir, SEGMENT_SIZE, MAX_SEGMENTS);
+    }
+
+    /**
+     * @param dir
+     * @param segmentSize 当前段写到这么大之后换新段
+     * @param maxSegments 最多保留的段数
+     * @throws IOException
+     */
+    public MessageStore(File dir, long segmentSize, int maxSegments) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建目录：" + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        openSegments();
+        loadLog();
+        cursors = new RandomAccessFile(new File(dir, CURSOR_FILE), "rw").getChannel();
+        loadCursors();
+    }
+
+    // 按起始偏移打开所有段文件，旧版本的单个日志文件作为第一个段
+    private void openSegments() throws IOException {
+        File legacy = new File(dir, LEGACY_LOG);
+        if (legacy.exists() && !legacy.renameTo(segmentFile(0))) {
+            throw new IOException("无法迁移日志文件：" + legacy);
+        }
+        List<Long> bases = new ArrayList<>();
+        String[] names = dir.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    bases.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // 不是段文件
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            segments.add(new Segment(base, segmentFile(base)));
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(0, segmentFile(0)));
+        }
+    }
+
+    private File segmentFile(long base) {
+        return new File(dir, SEGMENT_PREFIX + String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    // 正在追加的段
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    // 先从检查点恢复序号索引，再扫描检查点之后追加的帧头，丢弃进程崩溃时写了一半的帧
+    private void loadLog() throws IOException {
+        long position = loadCheckpoint();
+        for (Segment segment : segments) {
+            if (segment.end() <= position) {
+                continue;
+            }
+            long scanned = scan(segment, Math.max(position, segment.base) - segment.base);
+            // 只有正在追加的段可能有写了一半的帧，之前的段换段时已经写完整了
+            if (segment == active()) {
+                segment.channel.truncate(scanned);
+                segment.channel.position(scanned);
+            }
+        }
+    }
+
+    /**
+     * 从段内的position开始顺序扫描帧头，加入序号索引
+     * @param segment
+     * @param position 段内偏移，一定是帧边界
+     * @return 扫描到的最后一个完整帧的结束位置（段内偏移）
+     * @throws IOException
+     */
+    private long scan(Segment segment, long position) throws IOException {
+        long size = segment.channel.size();
+        try (FileInputStream file = new FileInputStream(segment.file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024))) {
+            file.getChannel().position(position);
+            while (position + Frame.HEADER <= size) {
+                int length = in.readInt();
+                in.readByte(); // 类型
+                in.readByte(); // 标志位
+                long seq = in.readLong();
+                if (length < 0 || length > Frame.MAX_PAYLOAD || position + Frame.HEADER + length > size) {
+                    break;
+                }
+                long offset = segment.base + position;
+                index(seq, offset, offset + Frame.HEADER + length);
+                in.skipBytes(length);
+                position += Frame.HEADER + length;
+            }
+        } catch (EOFException e) {
+            // 文件比记录的短，按已经扫描到的位置截断
+        }
+        return position;
+    }
+
+    /**
+     * 读取序号索引的检查点，已经删除的段里的条目直接丢掉
+     * @return 检查点覆盖到的日志位置，之后的帧还要扫描；没有可用的检查点时返回日志开头
+     * @throws IOException
+     */
+    private long loadCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return base();
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            buffer = ByteBuffer.allocate((int) Math.min(channel.size(), CHECKPOINT_HEADER + 24L * INDEX_LIMIT));
+            while (buffer.hasRemaining() && channel.read(buffer) > 0);
+        }
+        buffer.flip();
+        if (buffer.remaining() < CHECKPOINT_HEADER) {
+            return base();
+        }
+        long position = buffer.getLong();
+        long last = buffer.getLong();
+        int entries = buffer.getInt();
+        // 检查点不完整，或者比日志还新（比如日志末尾在崩溃时丢了），只能从头扫描
+        if (entries < 0 || entries > INDEX_LIMIT || buffer.remaining() != 24 * entries
+                || position < base() || position > end()) {
+            return base();
+        }
+        seqs = new long[Math.max(entries, 1024)];
+        offsets = new long[seqs.length];
+        ends = new long[seqs.length];
+        buffer.asLongBuffer().get(seqs, 0, entries);
+        buffer.position(buffer.position() + 8 * entries);
+        buffer.asLongBuffer().get(offsets, 0, entries);
+        buffer.position(buffer.position() + 8 * entries);
+        buffer.asLongBuffer().get(ends, 0, entries);
+        count = entries;
+        lastSeq = last;
+        dropExpired();
+        return position;
+    }
+
+    // 把序号索引写到检查点，先写临时文件再改名，进程崩溃时不会留下写了一半的检查点
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_HEADER + 24 * count);
+        buffer.putLong(end()).putLong(lastSeq).putInt(count);
+        buffer.asLongBuffer().put(seqs, 0, count);
+        buffer.position(buffer.position() + 8 * count);
+        buffer.asLongBuffer().put(offsets, 0, count);
+        buffer.position(buffer.position() + 8 * count);
+        buffer.asLongBuffer().put(ends, 0, count);
+        buffer.clear();
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 大消息的多个分片序号相同，只记录第一个分片的位置，后面的分片只更新结束位置
+    private void index(long seq, long offset, long end) {
+        if (seq <= lastSeq) {
+            int i = position(seq);
+            if (i < count && seqs[i] == seq) {
+                ends[i] = end;
+            }
+            return;
+        }
+        lastSeq = seq;
+        if (count == INDEX_LIMIT) {
+            dropIndex(count / 2);
+        }
+        if (count == seqs.length) {
+            seqs = Arrays.copyOf(seqs, Math.min(count * 2, INDEX_LIMIT));
+            offsets = Arrays.copyOf(offsets, seqs.length);
+            ends = Arrays.copyOf(ends, seqs.length);
+        }
+        seqs[count] = seq;
+        offsets[count] = offset;
+        ends[count++] = end;
+    }
+
+    // 丢掉索引中最旧的drop个条目
+    private void dropIndex(int drop) {
+        System.arraycopy(seqs, drop, seqs, 0, count - drop);
+        System.arraycopy(offsets, drop, offsets, 0, count - drop);
+        System.arraycopy(ends, drop, ends, 0, count - drop);
+        count -= drop;
+    }
+
+    private void loadCursors() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) cursors.size());
+        while (buffer.hasRemaining() && cursors.read(buffer, buffer.position()) > 0);
+        buffer.flip();
+        while (buffer.remaining() >= 2) {
+            int length = buffer.getShort() & 0xffff;
+            if (buffer.remaining() < length + 8) {
+                break; // 写了一半的记录，丢弃
+            }
+            byte[] name = new byte[length];
+            buffer.get(name);
+            slots.put(new String(name, StandardCharsets.UTF_8), (long) buffer.position());
+            buffer.getLong();
+        }
+        cursors.truncate(buffer.position());
+        cursors.position(buffer.position());
+    }
+
+    /**
+     * 追加一个帧到日志末尾，当前段写满时换新段
+     * @param frame 读模式的buffer，写完后position不变
+     * @return 是否换了新段，换段后由调用者通过retain删除不再需要的旧段
+     * @throws IOException
+     */
+    public boolean append(ByteBuffer frame) throws IOException {
+        Segment segment = active();
+        long offset = segment.end();
+        ByteBuffer buffer = frame.duplicate();
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer);
+        }
+        // 帧头第6个字节开始是序号
+        index(frame.getLong(frame.position() + 6), offset, segment.end());
+        if (segment.channel.position() < segmentSize) {
+            return false;
+        }
+        segments.add(new Segment(segment.end(), segmentFile(segment.end())));
+        writeCheckpoint();
+        return true;
+    }
+
+    /**
+     * 删除不再需要的旧段：所有用户的游标都已经越过的段，消息都已经过期的段，以及超出最多段数的最旧的段。
+     * 正在补发的连接还要读的段不删，否则补发会停在半个帧上
+     * @param pinned 正在补发的连接中最小的补发起点，没有时为Long.MAX_VALUE
+     * @throws IOException
+     */
+    public void retain(long pinned) throws IOException {
+        long floor = minCursor();
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            long end = oldest.end();
+            if (end > pinned || (end > Math.max(floor, start()) && segments.size() <= maxSegments)) {
+                break;
+            }
+            segments.remove(0);
+            oldest.channel.close();
+            // 删不掉时文件留在目录里，下次启动时作为段重新打开，再按同样的规则删除
+            oldest.file.delete();
+        }
+        dropExpired();
+    }
+
+    // 已经删除的段里的消息不能再按序号找到
+    private void dropExpired() {
+        int drop = Arrays.binarySearch(offsets, 0, count, base());
+        dropIndex(drop >= 0 ? drop : -drop - 1);
+    }
+
+    // 所有用户游标中最小的一个，没有用户时为Long.MAX_VALUE
+    private long minCursor() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) cursors.size());
+        while (buffer.hasRemaining() && cursors.read(buffer, buffer.position()) > 0);
+        long min = Long.MAX_VALUE;
+        for (long slot : slots.values()) {
+            min = Math.min(min, buffer.getLong((int) slot));
+        }
+        return min;
+    }
+
+    // 日志末尾的偏移
+    public long end() throws IOException {
+        return active().end();
+    }
+
+    // 最早的段的起始偏移，之前的段已经删除
+    private long base() {
+        return segments.get(0).base;
+    }
+
+    // 还能补发的最早的偏移，也就是索引里最早的消息的位置，之前的消息已经过期
+    public long start() throws IOException {
+        return count > 0 ? offsets[0] : end();
+    }
+
+    // 还能补发的最早的序号，之前的消息已经过期
+    public long firstSeq() {
+        return count > 0 ? seqs[0] : lastSeq + 1;
+    }
+
+    // 日志中最后一条消息的序号，日志为空时为0
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    // 第一条序号不小于seq的消息在日志中的偏移，比日志中所有消息都新时返回日志末尾
+    public long offset(long seq) throws IOException {
+        if (count == 0 || seq > seqs[count - 1]) {
+            return end();
+        }
+        return offsets[position(seq)];
+    }
+
+    /**
+     * 重发序号从from到to的消息时要发到的位置：通常是下一条消息的开头，
+     * 区间里的大消息和后面的消息交错写入时，要一直发到它最后一个分片之后
+     * @param from
+     * @param to
+     * @return
+     * @throws IOException
+     */
+    public long resendEnd(long from, long to) throws IOException {
+        long end = offset(to + 1);
+        for (int i = position(from); i < count && seqs[i] <= to; i++) {
+            end = Math.max(end, ends[i]);
+        }
+        return end;
+    }
+
+    /**
+     * 序号从from到to之间日志里没有的消息：已经过期的，以及分配了序号但没有写进日志的
+     * @param from
+     * @param to
+     * @return 连续缺少的序号区间，每个元素为{起始序号, 结束序号}
+     */
+    public List<long[]> missing(long from, long to) {
+        List<long[]> missing = new ArrayList<>();
+        long expected = Math.max(from, 1);
+        to = Math.min(to, lastSeq);
+        for (int i = position(expected); i < count && seqs[i] <= to; i++) {
+            if (seqs[i] > expected) {
+                missing.add(new long[]{expected, seqs[i] - 1});
+            }
+            expected = seqs[i] + 1;
+        }
+        if (expected <= to) {
+            missing.add(new long[]{expected, to});
+        }
+        return missing;
+    }
+
+    // 第一条序号不小于seq的消息在索引中的位置
+    private int position(long seq) {
+        int i = Arrays.binarySearch(seqs, 0, count, seq);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * 读取用户的游标，第一次出现的用户从当前日志末尾开始，不补发注册之前的历史。
+     * 游标指向的消息已经过期时，从还能补发的最早的位置开始
+     * @param user
+     * @return
+     * @throws IOException
+     */
+    public long cursor(String user) throws IOException {
+        Long slot = slots.get(user);
+        if (slot == null) {
+            long end = end();
+            saveCursor(user, end);
+            return end;
+        }
+        cursorBuffer.clear();
+        while (cursorBuffer.hasRemaining()
+                && cursors.read(cursorBuffer, slot + cursorBuffer.position()) > 0);
+        cursorBuffer.flip();
+        return Math.max(cursorBuffer.getLong(), start());
+    }
+
+    public void saveCursor(String user, long offset) throws IOException {
+        Long slot = slots.get(user);
+        if (slot == null) {
+            byte[] name = user.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(2 + name.length + 8);
+            record.putShort((short) name.length).put(name).putLong(offset);
+            record.flip();
+            slot = cursors.position() + 2 + name.length;
+            while (record.hasRemaining()) {
+                cursors.write(record);
+            }
+            slots.put(user, slot);
+            return;
+        }
+        cursorBuffer.clear();
+        cursorBuffer.putLong(offset);
+        cursorBuffer.flip();
+        while (cursorBuffer.hasRemaining()) {
+            cursors.write(cursorBuffer, slot + cursorBuffer.position());
+        }
+    }
+
+    /**
+     * 从offset开始把日志直接传输到通道，最多count个字节，通道写满时提前返回。
+     * 一次只传输一个段里的数据，跨段时调用者接着从下一个段的开头传输
+     * @param offset
+     * @param count
+     * @param target
+     * @return 实际传输的字节数
+     * @throws IOException
+     */
+    public long transfer(long offset, long count, WritableByteChannel target) throws IOException {
+        Segment segment = segment(offset);
+        return segment.channel.transferTo(offset - segment.base, Math.min(count, segment.end() - offset), target);
+    }
+
+    // offset所在的段，offset正好是一个段的末尾时返回下一个段
+    private Segment segment(long offset) throws IOException {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).base <= offset) {
+                return segments.get(i);
+            }
+        }
+        throw new IOException("日志偏移" + offset + "所在的段已经删除");
+    }
+
+    /**
+     * 补发可能停在半个帧上，游标只能落在帧边界。从已知的帧边界from开始，
+     * 找到不超过position的最后一个帧边界
+     * @param from
+     * @param position
+     * @return
+     * @throws IOException
+     */
+    public long lastBoundary(long from, long position) throws IOException {
+        long next;
+        while (from < position && (next = frameEnd(from)) <= position) {
+            from = next;
+        }
+        return from;
+    }
+
+    // 从已知的帧边界from开始，找到不小于position的第一个帧边界
+    public long nextBoundary(long from, long position) throws IOException {
+        while (from < position) {
+            from = frameEnd(from);
+        }
+        return from;
+    }
+
+    private long frameEnd(long offset) throws IOException {
+        Segment segment = segment(offset);
+        headerBuffer.clear();
+        while (headerBuffer.hasRemaining()
+                && segment.channel.read(headerBuffer, offset - segment.base + headerBuffer.position()) > 0);
+        headerBuffer.flip();
+        return offset + Frame.HEADER + headerBuffer.getInt();
+    }
+
+    // 关闭前写一次检查点，正常重启时不用扫描日志
+    @Override
+    public void close() throws IOException {
+        try {
+            writeCheckpoint();
+        } finally {
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+            cursors.close();
+        }
+    }
+
+}
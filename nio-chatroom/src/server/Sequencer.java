@@ -0,0 +1,46 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @FileName: Sequencer.java
+ * @Description: 按聊天室分配单调递增的消息序号，基于AtomicLong，多个线程同时分配也不需要加锁
+ * @Author: camille
+ * @Date: 2020/12/03 20:05
+ */
+public class Sequencer {
+
+    private final ConcurrentMap<String, AtomicLong> rooms = new ConcurrentHashMap<>();
+
+    // 分配下一个序号，第一个序号为1
+    public long next(String room) {
+        return counter(room).incrementAndGet();
+    }
+
+    // 最近分配的序号，还没有分配过时为0
+    public long current(String room) {
+        return counter(room).get();
+    }
+
+    // 重启后从日志中恢复，之后分配的序号接着往后排
+    public void seed(String room, long seq) {
+        AtomicLong counter = counter(room);
+        long current;
+        while ((current = counter.get()) < seq && !counter.compareAndSet(current, seq));
+    }
+
+    private AtomicLong counter(String room) {
+        AtomicLong counter = rooms.get(room);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = rooms.putIfAbsent(room, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+}
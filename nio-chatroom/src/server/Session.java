@@ -0,0 +1,255 @@
+package server;
+
+import protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @FileName: Session.java
+ * @Description: 每个客户端连接的状态，第一次收到数据时才创建，作为attachment挂在SelectionKey上
+ * @Author: camille
+ * @Date: 2020/11/26 21:05
+ */
+public class Session {
+
+    // 上次读到的半个帧，凑齐之前暂存在这里，没有半个帧时为null，空闲连接不占用缓冲区
+    private ByteBuffer pending;
+    // 握手时客户端声明支持deflate
+    private boolean deflate;
+    // 握手时客户端带上的用户名，没有用户名的连接不保存游标
+    private String user;
+    // 正在补发离线消息时为下一个要发送的日志偏移，-1表示已经在接收实时消息
+    private long catchUp = -1;
+    // 本次补发开始的位置，一定是帧边界
+    private long catchUpFrom;
+    // 只补发一个缺口时为缺口结束的偏移，期间的实时消息暂存到deferred；-1表示一直补发到日志末尾
+    private long catchUpEnd = -1;
+    // 客户端确认已经连续收到的最大序号
+    private long acked;
+    // 正在接收的大消息的序号，0表示没有正在接收的大消息。服务器只记住序号，不保存分片内容
+    private long streamSeq;
+    // 正在接收的大消息的下一个分片编号，转发时写在分片开头，接收者据此去掉重发时重复的分片
+    private int streamIndex;
+    // 补发期间收到的私聊和补缺口期间的实时消息，大多数连接用不到，第一次需要时才创建
+    private List<ByteBuffer> deferred;
+    // 暂存的字节数
+    private long deferredBytes;
+    // 补发期间收到的重发请求，每个元素为{起始序号, 结束序号}，等当前的补发结束后按顺序处理，第一次需要时才创建
+    private ArrayDeque<long[]> resends;
+    // 通道写不下时还没写出的帧，按顺序等write事件再写。大多数连接一次就能写完，第一次需要时才创建
+    private ArrayDeque<ByteBuffer> outbound;
+    // 发送队列中还没写出的字节数
+    private long outboundBytes;
+
+    /**
+     * 从通道读取数据到服务器共用的读缓冲区，之前暂存的半个帧放在最前面
+     * @param client
+     * @param buffer 写模式的共用缓冲区
+     * @return 对端关闭连接时返回false，关闭之前读到的数据仍然在缓冲区里
+     * @throws IOException
+     */
+    public boolean read(SocketChannel client, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        if (pending != null) {
+            buffer.put(pending);
+            pending = null;
+        }
+        int n;
+        while ((n = client.read(buffer)) > 0);
+        buffer.flip(); // 转为读模式，交给Frame.decode
+        return n >= 0;
+    }
+
+    /**
+     * 共用缓冲区里的帧处理完之后，把剩下的半个帧复制出来暂存，共用缓冲区留给下一个连接
+     * @param buffer 读模式的共用缓冲区
+     */
+    public void keepPending(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            pending = ByteBuffer.allocate(buffer.remaining());
+            pending.put(buffer);
+            pending.flip();
+        }
+    }
+
+    /**
+     * 把写不下的帧放进发送队列
+     * @param frame 剩下没写出的部分
+     * @return 队列中还没写出的字节数
+     */
+    public long queue(ByteBuffer frame) {
+        if (outbound == null) {
+            outbound = new ArrayDeque<>();
+        }
+        outbound.add(frame);
+        outboundBytes += frame.remaining();
+        return outboundBytes;
+    }
+
+    public boolean hasOutbound() {
+        return outbound != null;
+    }
+
+    /**
+     * 按顺序写发送队列里的帧，通道写不下时停下，剩下的等下一次write事件
+     * @param client
+     * @return 队列是否已经写空
+     * @throws IOException
+     */
+    public boolean flush(SocketChannel client) throws IOException {
+        while (outbound != null) {
+            ByteBuffer frame = outbound.peek();
+            outboundBytes -= client.write(frame);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            outbound.poll();
+            if (outbound.isEmpty()) {
+                outbound = null;
+            }
+        }
+        return true;
+    }
+
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public boolean isCatchingUp() {
+        return catchUp >= 0;
+    }
+
+    public long getCatchUp() {
+        return catchUp;
+    }
+
+    public void setCatchUp(long catchUp) {
+        this.catchUp = catchUp;
+    }
+
+    public long getCatchUpFrom() {
+        return catchUpFrom;
+    }
+
+    public void setCatchUpFrom(long catchUpFrom) {
+        this.catchUpFrom = catchUpFrom;
+    }
+
+    public long getCatchUpEnd() {
+        return catchUpEnd;
+    }
+
+    public void setCatchUpEnd(long catchUpEnd) {
+        this.catchUpEnd = catchUpEnd;
+    }
+
+    public long getAcked() {
+        return acked;
+    }
+
+    public void setAcked(long acked) {
+        this.acked = acked;
+    }
+
+    public long getStreamSeq() {
+        return streamSeq;
+    }
+
+    public void setStreamSeq(long streamSeq) {
+        this.streamSeq = streamSeq;
+        this.streamIndex = 0;
+    }
+
+    // 取出下一个分片编号
+    public int nextStreamIndex() {
+        return streamIndex++;
+    }
+
+    /**
+     * 暂存一个帧，补发结束后再发
+     * @param frame
+     * @return 暂存的字节数
+     */
+    public long defer(ByteBuffer frame) {
+        if (deferred == null) {
+            deferred = new ArrayList<>();
+        }
+        deferred.add(frame);
+        deferredBytes += frame.remaining();
+        return deferredBytes;
+    }
+
+    /**
+     * 丢掉暂存的聊天室消息，它们已经写进日志，之后从日志补发；私聊（序号为0）和自己消息的序号通知不在日志里，保留
+     * @return 剩下暂存的字节数
+     */
+    public long dropLogged() {
+        if (deferred == null) {
+            return 0;
+        }
+        // 帧头第4个字节是类型，第6个字节开始是序号
+        deferred.removeIf(frame -> frame.get(frame.position() + 4) != Frame.ACK
+                && frame.getLong(frame.position() + 6) > 0);
+        deferredBytes = 0;
+        for (ByteBuffer frame : deferred) {
+            deferredBytes += frame.remaining();
+        }
+        return deferredBytes;
+    }
+
+    // 取出并清空暂存的私聊
+    public List<ByteBuffer> takeDeferred() {
+        if (deferred == null) {
+            return Collections.emptyList();
+        }
+        List<ByteBuffer> frames = deferred;
+        deferred = null;
+        deferredBytes = 0;
+        return frames;
+    }
+
+    // 排队一个重发请求，和上一个重叠或者相连时合并
+    public void queueResend(long from, long to) {
+        if (resends == null) {
+            resends = new ArrayDeque<>();
+        }
+        long[] last = resends.peekLast();
+        if (last != null && from <= last[1] + 1 && to >= last[0] - 1) {
+            last[0] = Math.min(last[0], from);
+            last[1] = Math.max(last[1], to);
+        } else {
+            resends.add(new long[]{from, to});
+        }
+    }
+
+    // 取出下一个排队的重发请求，没有时返回null
+    public long[] takeResend() {
+        if (resends == null) {
+            return null;
+        }
+        long[] next = resends.poll();
+        if (resends.isEmpty()) {
+            resends = null;
+        }
+        return next;
+    }
+
+}